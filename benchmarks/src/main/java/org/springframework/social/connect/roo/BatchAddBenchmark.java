@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Benchmarks onboarding connections in rows per second: adding each
+ * connection through ConnectionRepository.addConnection against adding them
+ * all through RooUsersConnectionRepository.addConnections, for batches of
+ * connections spread over users with the given number of connections each.
+ *
+ * @author Michael Lavelle
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchAddBenchmark {
+
+	private static final String PROVIDER_ID = "test";
+
+	private static final int BATCH_SIZE = 1000;
+
+	@Param({ "1", "10", "100" })
+	public int connectionsPerUser;
+
+	/**
+	 * The RooTemplate implementation: roo or jdbc.
+	 */
+	@Param({ "roo", "jdbc" })
+	public String template;
+
+	private ClassPathXmlApplicationContext context;
+
+	private DataSource dataSource;
+
+	private ConnectionFactory<?> connectionFactory;
+
+	private RooUsersConnectionRepository usersConnectionRepository;
+
+	private int batch;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		context = new ClassPathXmlApplicationContext(
+				"META-INF/spring/applicationContext.xml");
+		dataSource = context.getBean(DataSource.class);
+		DatabasePopulatorUtils.execute(
+				context.getBean(ResourceDatabasePopulator.class), dataSource);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+
+		RooTemplate rooTemplate;
+		if ("jdbc".equals(template)) {
+			rooTemplate = new JdbcRooTemplate(dataSource);
+		} else {
+			rooTemplate = context.getBean(RooUserConnectionTemplate.class);
+		}
+		ConnectionFactoryRegistry connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactoryRegistry
+				.addConnectionFactory(new RooConnectionRepositoryTest.TestApiConnectionFactory());
+		connectionFactory = connectionFactoryRegistry
+				.getConnectionFactory(PROVIDER_ID);
+		usersConnectionRepository = new RooUsersConnectionRepository(
+				rooTemplate, connectionFactoryRegistry, Encryptors.noOpText());
+	}
+
+	@TearDown(Level.Iteration)
+	public void removeAddedConnections() {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void addConnection() {
+		MultiValueMap<String, Connection<?>> connections = nextBatch();
+		for (String userId : connections.keySet()) {
+			ConnectionRepository connectionRepository = usersConnectionRepository
+					.createConnectionRepository(userId);
+			for (Connection<?> connection : connections.get(userId)) {
+				connectionRepository.addConnection(connection);
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void addConnections() {
+		usersConnectionRepository.addConnections(nextBatch());
+	}
+
+	/**
+	 * Returns a batch of connections of users not yet connected.
+	 */
+	private MultiValueMap<String, Connection<?>> nextBatch() {
+		batch++;
+		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			String providerUserId = "provider-user-" + i;
+			connections.add("user-" + batch + "-" + i / connectionsPerUser,
+					connectionFactory.createConnection(new ConnectionData(
+							PROVIDER_ID, providerUserId, providerUserId,
+							null, null, "accessToken", null, null, null)));
+		}
+		return connections;
+	}
+
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Benchmarks the RooUsersConnectionRepository and RooConnectionRepository hot
+ * paths against the embedded H2 database of DataSourceTestConfig, populated
+ * with the given number of rows spread over users with the given number of
+ * connections each. Each operation is made on behalf of one of a sample of
+ * users spread evenly over the table.
+ *
+ * @author Michael Lavelle
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionRepositoryBenchmark {
+
+	private static final String PROVIDER_ID = "test";
+
+	private static final int SAMPLE_SIZE = 100;
+
+	private static final int CONNECTED_TO_SIZE = 1000;
+
+	private static final int MANY_PROVIDER_USERS_SIZE = 20000;
+
+	private static final int INSERT_BATCH_SIZE = 10000;
+
+	@Param({ "1", "1000", "1000000" })
+	public int rows;
+
+	@Param({ "1", "10", "100", "1000" })
+	public int connectionsPerUser;
+
+	/**
+	 * The RooTemplate implementation: roo, jdbc or caching (a
+	 * CachingRooTemplate over the roo template).
+	 */
+	@Param({ "roo", "jdbc", "caching" })
+	public String template;
+
+	/**
+	 * The token encryption: noop or text (AES encryption).
+	 */
+	@Param({ "noop", "text" })
+	public String encryption;
+
+	/**
+	 * The maximum number of Connection instances cached by the repository, or
+	 * zero to build a Connection on every read.
+	 */
+	@Param({ "0" })
+	public int connectionCacheSize;
+
+	private ClassPathXmlApplicationContext context;
+
+	private DataSource dataSource;
+
+	private RooTemplate rooTemplate;
+
+	private ConnectionFactory<?> connectionFactory;
+
+	private RooUsersConnectionRepository usersConnectionRepository;
+
+	private String[] sampleUserIds;
+
+	private List<String> sampleUserIdList;
+
+	private List<MultiValueMap<String, String>> sampleProviderUsers;
+
+	private MultiValueMap<String, String> manyProviderUsers;
+
+	private List<Connection<?>> sampleConnections;
+
+	private Set<String> connectedToProviderUserIds;
+
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		context = new ClassPathXmlApplicationContext(
+				"META-INF/spring/applicationContext.xml");
+		dataSource = context.getBean(DataSource.class);
+		DatabasePopulatorUtils.execute(
+				context.getBean(ResourceDatabasePopulator.class), dataSource);
+		insertRows();
+
+		if ("jdbc".equals(template)) {
+			rooTemplate = new JdbcRooTemplate(dataSource);
+		} else if ("caching".equals(template)) {
+			rooTemplate = new CachingRooTemplate(
+					context.getBean(RooUserConnectionTemplate.class), 10000, 0);
+		} else {
+			rooTemplate = context.getBean(RooUserConnectionTemplate.class);
+		}
+		ConnectionFactoryRegistry connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactoryRegistry
+				.addConnectionFactory(new RooConnectionRepositoryTest.TestApiConnectionFactory());
+		connectionFactory = connectionFactoryRegistry
+				.getConnectionFactory(PROVIDER_ID);
+		usersConnectionRepository = new RooUsersConnectionRepository(
+				rooTemplate, connectionFactoryRegistry, createTextEncryptor());
+		usersConnectionRepository.setConnectionCacheSize(connectionCacheSize);
+
+		int users = (rows + connectionsPerUser - 1) / connectionsPerUser;
+		int sampleSize = Math.min(users, SAMPLE_SIZE);
+		sampleUserIds = new String[sampleSize];
+		sampleProviderUsers = new ArrayList<MultiValueMap<String, String>>(
+				sampleSize);
+		sampleConnections = new ArrayList<Connection<?>>(sampleSize);
+		for (int i = 0; i < sampleSize; i++) {
+			int user = (int) ((long) i * users / sampleSize);
+			sampleUserIds[i] = userId(user);
+			int firstRow = user * connectionsPerUser;
+			int lastRow = Math.min(firstRow + connectionsPerUser, rows);
+			MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+			for (int row = firstRow; row < lastRow; row++) {
+				providerUsers.add(PROVIDER_ID, providerUserId(row));
+			}
+			sampleProviderUsers.add(providerUsers);
+			sampleConnections.add(createConnection(providerUserId(firstRow),
+					accessToken(firstRow)));
+		}
+		sampleUserIdList = Arrays.asList(sampleUserIds);
+		manyProviderUsers = new LinkedMultiValueMap<String, String>();
+		manyProviderUsers.put(PROVIDER_ID, new ArrayList<String>(
+				sampleProviderUsers.get(0).get(PROVIDER_ID)));
+		for (int i = manyProviderUsers.get(PROVIDER_ID).size(); i < MANY_PROVIDER_USERS_SIZE; i++) {
+			manyProviderUsers.add(PROVIDER_ID, "unconnected-" + i);
+		}
+		int connectedToSize = Math.min(rows, CONNECTED_TO_SIZE);
+		connectedToProviderUserIds = new HashSet<String>(connectedToSize);
+		for (int i = 0; i < connectedToSize; i++) {
+			connectedToProviderUserIds.add(providerUserId((int) ((long) i
+					* rows / connectedToSize)));
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void removeAddedConnections() {
+		new JdbcTemplate(dataSource)
+				.update("delete from user_connection where provider_user_id like 'added-%'");
+		if (rooTemplate instanceof CachingRooTemplate) {
+			((CachingRooTemplate) rooTemplate).clear();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		context.close();
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return usersConnectionRepository.createConnectionRepository(
+				sampleUserIds[nextSample()]).findAllConnections();
+	}
+
+	/**
+	 * Reads the connections of every sampled user in one call, as a fan-out
+	 * job would, to compare against SAMPLE_SIZE calls of findAllConnections.
+	 */
+	@Benchmark
+	public Map<String, MultiValueMap<String, Connection<?>>> findAllConnectionsOfUsers() {
+		return usersConnectionRepository.findAllConnections(sampleUserIdList);
+	}
+
+	@Benchmark
+	public MultiValueMap<String, ConnectionData> findAllConnectionData() {
+		return usersConnectionRepository
+				.findAllConnectionData(sampleUserIds[nextSample()]);
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers() {
+		int sample = nextSample();
+		return usersConnectionRepository.createConnectionRepository(
+				sampleUserIds[sample]).findConnectionsToUsers(
+				sampleProviderUsers.get(sample));
+	}
+
+	/**
+	 * Looks up MANY_PROVIDER_USERS_SIZE provider users, all but
+	 * connectionsPerUser of which the user is not connected to, as when
+	 * resolving a large friend list.
+	 */
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToManyUsers() {
+		return usersConnectionRepository.createConnectionRepository(
+				sampleUserIds[0]).findConnectionsToUsers(manyProviderUsers);
+	}
+
+	@Benchmark
+	public List<String> findUserIdsWithConnection() {
+		return usersConnectionRepository
+				.findUserIdsWithConnection(sampleConnections.get(nextSample()));
+	}
+
+	@Benchmark
+	public Set<String> findUserIdsConnectedTo() {
+		return usersConnectionRepository.findUserIdsConnectedTo(PROVIDER_ID,
+				connectedToProviderUserIds);
+	}
+
+	@Benchmark
+	public void addConnection() {
+		usersConnectionRepository.createConnectionRepository(
+				sampleUserIds[nextSample()]).addConnection(
+				createConnection("added-" + next, "accessToken"));
+	}
+
+	/**
+	 * Updates a connection with a new access token, as on a token refresh.
+	 */
+	@Benchmark
+	public void updateConnection() {
+		int sample = nextSample();
+		Connection<?> connection = sampleConnections.get(sample);
+		usersConnectionRepository.createConnectionRepository(
+				sampleUserIds[sample]).updateConnection(
+				createConnection(connection.getKey().getProviderUserId(),
+						"refreshed-" + next));
+	}
+
+	/**
+	 * Updates a connection with its current data, as on a repeated token
+	 * refresh returning the same token.
+	 */
+	@Benchmark
+	public void updateConnectionUnchanged() {
+		int sample = nextSample();
+		usersConnectionRepository.createConnectionRepository(
+				sampleUserIds[sample]).updateConnection(
+				sampleConnections.get(sample));
+	}
+
+	private void insertRows() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.update("delete from user_connection");
+		TextEncryptor textEncryptor = createTextEncryptor();
+		List<Object[]> batch = new ArrayList<Object[]>(Math.min(rows,
+				INSERT_BATCH_SIZE));
+		for (int row = 0; row < rows; row++) {
+			batch.add(new Object[] { userId(row / connectionsPerUser),
+					PROVIDER_ID, providerUserId(row),
+					row % connectionsPerUser + 1, providerUserId(row),
+					textEncryptor.encrypt(accessToken(row)) });
+			if (batch.size() == INSERT_BATCH_SIZE || row == rows - 1) {
+				jdbcTemplate
+						.batchUpdate(
+								"insert into user_connection (user_id, provider_id, provider_user_id, rank, display_name, access_token, version) values (?, ?, ?, ?, ?, ?, 0)",
+								batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private Connection<?> createConnection(String providerUserId,
+			String accessToken) {
+		return connectionFactory.createConnection(new ConnectionData(
+				PROVIDER_ID, providerUserId, providerUserId, null, null,
+				accessToken, null, null, null));
+	}
+
+	private TextEncryptor createTextEncryptor() {
+		if ("text".equals(encryption)) {
+			return Encryptors.text("benchmark", "5c0744940b5c369b");
+		}
+		return Encryptors.noOpText();
+	}
+
+	private int nextSample() {
+		next++;
+		return (next & Integer.MAX_VALUE) % sampleUserIds.length;
+	}
+
+	private static String userId(int user) {
+		return "user-" + user;
+	}
+
+	private static String providerUserId(int row) {
+		return "provider-user-" + row;
+	}
+
+	private static String accessToken(int row) {
+		return "accessToken-" + row;
+	}
+
+}
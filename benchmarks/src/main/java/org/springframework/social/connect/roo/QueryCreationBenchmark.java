@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Benchmarks the per-query overhead of the UserConnection finders: creating
+ * a query from its JPQL against looking up its named query, and resolving the
+ * EntityManager through UserConnection.entityManager() against constructing a
+ * configurable UserConnection, as entityManager() did on every call before.
+ * Also measures copying a UserConnection, as JdbcRooTemplate does for each row
+ * it maps instead of constructing one.
+ *
+ * @author Michael Lavelle
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryCreationBenchmark {
+
+	private ClassPathXmlApplicationContext context;
+
+	private EntityManager entityManager;
+
+	private UserConnection userConnectionPrototype;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		context = new ClassPathXmlApplicationContext(
+				"META-INF/spring/applicationContext.xml");
+		entityManager = context.getBean(EntityManagerFactory.class)
+				.createEntityManager();
+		userConnectionPrototype = new UserConnection();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		entityManager.close();
+		context.close();
+	}
+
+	@Benchmark
+	public TypedQuery<UserConnection> createQuery() {
+		return entityManager
+				.createQuery(
+						"SELECT o FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId order by o.rank",
+						UserConnection.class);
+	}
+
+	@Benchmark
+	public TypedQuery<UserConnection> createNamedQuery() {
+		return entityManager.createNamedQuery(
+				"UserConnection.findUserConnectionsByUserIdAndProviderId",
+				UserConnection.class);
+	}
+
+	@Benchmark
+	public EntityManager entityManager() {
+		return UserConnection.entityManager();
+	}
+
+	@Benchmark
+	public UserConnection newUserConnection() {
+		return new UserConnection();
+	}
+
+	@Benchmark
+	public UserConnection copyUserConnection() {
+		return userConnectionPrototype.copy();
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+/**
+ * Asynchronous facade over a single user's {@link ConnectionRepository},
+ * running each operation on the given Executor and returning a
+ * ListenableFuture of its result, so that independent lookups can overlap.
+ * Exceptions thrown by an operation, eg. NoSuchConnectionException, are
+ * reported through the future.
+ * <p>
+ * Each write runs in the transaction of the underlying repository, begun and
+ * committed on the executor thread, so writes keep their semantics but do not
+ * join a transaction active on the calling thread.
+ * 
+ * @author Michael Lavelle
+ * @see AsyncUsersConnectionRepository
+ */
+public class AsyncConnectionRepository {
+
+	private final ConnectionRepository connectionRepository;
+
+	private final Executor executor;
+
+	public AsyncConnectionRepository(ConnectionRepository connectionRepository,
+			Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor cannot be null");
+		}
+		this.connectionRepository = connectionRepository;
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the underlying repository, for operations which need not be
+	 * asynchronous.
+	 */
+	public ConnectionRepository getConnectionRepository() {
+		return connectionRepository;
+	}
+
+	public ListenableFuture<MultiValueMap<String, Connection<?>>> findAllConnections() {
+		return submit(executor,
+				new Callable<MultiValueMap<String, Connection<?>>>() {
+					public MultiValueMap<String, Connection<?>> call() {
+						return connectionRepository.findAllConnections();
+					}
+				});
+	}
+
+	public ListenableFuture<List<Connection<?>>> findConnections(
+			final String providerId) {
+		return submit(executor, new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionRepository.findConnections(providerId);
+			}
+		});
+	}
+
+	public <A> ListenableFuture<List<Connection<A>>> findConnections(
+			final Class<A> apiType) {
+		return submit(executor, new Callable<List<Connection<A>>>() {
+			public List<Connection<A>> call() {
+				return connectionRepository.findConnections(apiType);
+			}
+		});
+	}
+
+	public ListenableFuture<MultiValueMap<String, Connection<?>>> findConnectionsToUsers(
+			final MultiValueMap<String, String> providerUsers) {
+		return submit(executor,
+				new Callable<MultiValueMap<String, Connection<?>>>() {
+					public MultiValueMap<String, Connection<?>> call() {
+						return connectionRepository
+								.findConnectionsToUsers(providerUsers);
+					}
+				});
+	}
+
+	public ListenableFuture<Connection<?>> getConnection(
+			final ConnectionKey connectionKey) {
+		return submit(executor, new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionRepository.getConnection(connectionKey);
+			}
+		});
+	}
+
+	public <A> ListenableFuture<Connection<A>> getConnection(
+			final Class<A> apiType, final String providerUserId) {
+		return submit(executor, new Callable<Connection<A>>() {
+			public Connection<A> call() {
+				return connectionRepository.getConnection(apiType,
+						providerUserId);
+			}
+		});
+	}
+
+	public <A> ListenableFuture<Connection<A>> getPrimaryConnection(
+			final Class<A> apiType) {
+		return submit(executor, new Callable<Connection<A>>() {
+			public Connection<A> call() {
+				return connectionRepository.getPrimaryConnection(apiType);
+			}
+		});
+	}
+
+	public <A> ListenableFuture<Connection<A>> findPrimaryConnection(
+			final Class<A> apiType) {
+		return submit(executor, new Callable<Connection<A>>() {
+			public Connection<A> call() {
+				return connectionRepository.findPrimaryConnection(apiType);
+			}
+		});
+	}
+
+	public ListenableFuture<Void> addConnection(final Connection<?> connection) {
+		return submit(executor, new Callable<Void>() {
+			public Void call() {
+				connectionRepository.addConnection(connection);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> updateConnection(
+			final Connection<?> connection) {
+		return submit(executor, new Callable<Void>() {
+			public Void call() {
+				connectionRepository.updateConnection(connection);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> removeConnections(final String providerId) {
+		return submit(executor, new Callable<Void>() {
+			public Void call() {
+				connectionRepository.removeConnections(providerId);
+				return null;
+			}
+		});
+	}
+
+	public ListenableFuture<Void> removeConnection(
+			final ConnectionKey connectionKey) {
+		return submit(executor, new Callable<Void>() {
+			public Void call() {
+				connectionRepository.removeConnection(connectionKey);
+				return null;
+			}
+		});
+	}
+
+	static <T> ListenableFuture<T> submit(Executor executor,
+			Callable<T> callable) {
+		ListenableFutureTask<T> future = new ListenableFutureTask<T>(callable);
+		executor.execute(future);
+		return future;
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous facade over a {@link RooUsersConnectionRepository}, running
+ * each lookup on the given Executor and returning a ListenableFuture of its
+ * result, so that eg. the connections of several users can be read
+ * concurrently. Any Executor may be used, such as a ThreadPoolTaskExecutor
+ * bounded to the size of the connection pool, or a virtual thread per task
+ * executor on JDKs which support them.
+ * 
+ * @author Michael Lavelle
+ */
+public class AsyncUsersConnectionRepository {
+
+	private final RooUsersConnectionRepository usersConnectionRepository;
+
+	private final Executor executor;
+
+	public AsyncUsersConnectionRepository(
+			RooUsersConnectionRepository usersConnectionRepository,
+			Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor cannot be null");
+		}
+		this.usersConnectionRepository = usersConnectionRepository;
+		this.executor = executor;
+	}
+
+	/**
+	 * Looks up the users connected to the given connection on the executor.
+	 * Any ConnectionSignUp is also executed on the executor.
+	 */
+	public ListenableFuture<List<String>> findUserIdsWithConnection(
+			final Connection<?> connection) {
+		return AsyncConnectionRepository.submit(executor,
+				new Callable<List<String>>() {
+					public List<String> call() {
+						return usersConnectionRepository
+								.findUserIdsWithConnection(connection);
+					}
+				});
+	}
+
+	public ListenableFuture<Set<String>> findUserIdsConnectedTo(
+			final String providerId, final Set<String> providerUserIds) {
+		return AsyncConnectionRepository.submit(executor,
+				new Callable<Set<String>>() {
+					public Set<String> call() {
+						return usersConnectionRepository.findUserIdsConnectedTo(
+								providerId, providerUserIds);
+					}
+				});
+	}
+
+	/**
+	 * @see RooUsersConnectionRepository#findAllConnectionData(String)
+	 */
+	public ListenableFuture<MultiValueMap<String, ConnectionData>> findAllConnectionData(
+			final String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		return AsyncConnectionRepository.submit(executor,
+				new Callable<MultiValueMap<String, ConnectionData>>() {
+					public MultiValueMap<String, ConnectionData> call() {
+						return usersConnectionRepository
+								.findAllConnectionData(userId);
+					}
+				});
+	}
+
+	/**
+	 * @see RooUsersConnectionRepository#findAllConnections(Collection)
+	 */
+	public ListenableFuture<Map<String, MultiValueMap<String, Connection<?>>>> findAllConnections(
+			final Collection<String> userIds) {
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds cannot be null");
+		}
+		return AsyncConnectionRepository.submit(executor,
+				new Callable<Map<String, MultiValueMap<String, Connection<?>>>>() {
+					public Map<String, MultiValueMap<String, Connection<?>>> call() {
+						return usersConnectionRepository
+								.findAllConnections(userIds);
+					}
+				});
+	}
+
+	public AsyncConnectionRepository createConnectionRepository(String userId) {
+		return new AsyncConnectionRepository(
+				usersConnectionRepository.createConnectionRepository(userId),
+				executor);
+	}
+
+}
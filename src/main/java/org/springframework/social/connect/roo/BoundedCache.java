@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple thread-safe LRU cache bounded by size, with entries expiring a fixed
+ * time after they were added. Keeps hit, miss and eviction counts.
+ *
+ * @author Michael Lavelle
+ */
+class BoundedCache<K, V> {
+
+	private final int maximumSize;
+
+	private final long timeToLiveMillis;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+	/**
+	 * @param maximumSize
+	 *            the maximum number of entries held, least recently used
+	 *            entries are evicted first
+	 * @param timeToLiveMillis
+	 *            time after which an entry expires, or zero or less for no
+	 *            expiry
+	 */
+	public BoundedCache(int maximumSize, long timeToLiveMillis) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException(
+					"maximumSize must be greater than zero");
+		}
+		this.maximumSize = maximumSize;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<K, CacheEntry<V>> eldest) {
+				if (size() > BoundedCache.this.maximumSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public synchronized V get(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if (entry != null && isExpired(entry)) {
+			entries.remove(key);
+			evictionCount.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.value;
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis()));
+	}
+
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Removes every entry accepted by the given filter.
+	 */
+	public synchronized void removeAll(EntryFilter<K, V> filter) {
+		Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+			if (filter.accept(entry.getKey(), entry.getValue().value)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private boolean isExpired(CacheEntry<V> entry) {
+		return timeToLiveMillis > 0
+				&& System.currentTimeMillis() - entry.createdMillis >= timeToLiveMillis;
+	}
+
+	interface EntryFilter<K, V> {
+
+		boolean accept(K key, V value);
+
+	}
+
+	private static final class CacheEntry<V> {
+
+		private final V value;
+
+		private final long createdMillis;
+
+		private CacheEntry(V value, long createdMillis) {
+			this.value = value;
+			this.createdMillis = createdMillis;
+		}
+
+	}
+
+}
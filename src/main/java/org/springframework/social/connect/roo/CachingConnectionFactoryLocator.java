@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+
+/**
+ * ConnectionFactoryLocator decorator remembering each ConnectionFactory
+ * resolved by provider id or api type, so that mapping many connections does
+ * not resolve the same factory through the underlying locator each time.
+ * Lookups which fail are not remembered, so factories registered later are
+ * still found.
+ *
+ * @author Michael Lavelle
+ */
+class CachingConnectionFactoryLocator implements ConnectionFactoryLocator {
+
+	private final ConnectionFactoryLocator connectionFactoryLocator;
+
+	private final ConcurrentMap<String, ConnectionFactory<?>> connectionFactoriesByProviderId = new ConcurrentHashMap<String, ConnectionFactory<?>>();
+
+	private final ConcurrentMap<Class<?>, ConnectionFactory<?>> connectionFactoriesByApiType = new ConcurrentHashMap<Class<?>, ConnectionFactory<?>>();
+
+	public CachingConnectionFactoryLocator(
+			ConnectionFactoryLocator connectionFactoryLocator) {
+		this.connectionFactoryLocator = connectionFactoryLocator;
+	}
+
+	public ConnectionFactory<?> getConnectionFactory(String providerId) {
+		ConnectionFactory<?> connectionFactory = connectionFactoriesByProviderId
+				.get(providerId);
+		if (connectionFactory == null) {
+			connectionFactory = connectionFactoryLocator
+					.getConnectionFactory(providerId);
+			connectionFactoriesByProviderId.put(providerId, connectionFactory);
+		}
+		return connectionFactory;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <A> ConnectionFactory<A> getConnectionFactory(Class<A> apiType) {
+		ConnectionFactory<?> connectionFactory = connectionFactoriesByApiType
+				.get(apiType);
+		if (connectionFactory == null) {
+			connectionFactory = connectionFactoryLocator
+					.getConnectionFactory(apiType);
+			connectionFactoriesByApiType.put(apiType, connectionFactory);
+		}
+		return (ConnectionFactory<A>) connectionFactory;
+	}
+
+	public Set<String> registeredProviderIds() {
+		return connectionFactoryLocator.registeredProviderIds();
+	}
+
+}
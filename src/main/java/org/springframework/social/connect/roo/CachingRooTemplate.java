@@ -0,0 +1,579 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * RooTemplate decorator caching the connections of each user, both in full and
+ * per provider, so that repeated reads of the same user's connections do not
+ * hit the database. The cache is bounded in size and entries expire after a
+ * configurable time to live. Optionally, the users connected to each provider
+ * user can be cached too, for provider sign-in lookups.
+ *
+ * Writes made through this template invalidate the cached entries of the
+ * affected user, both immediately and again once any surrounding transaction
+ * completes. A load which was already running when an entry was invalidated is
+ * not cached, so a read racing a write cannot cache the state prior to the
+ * write. Reads made within a transaction bypass the cache, so that callers
+ * updating connections always operate on entities managed by the current
+ * persistence context.
+ *
+ * Callers receive copies of the cached connections, so changes made to them
+ * are not seen by other callers.
+ *
+ * @author Michael Lavelle
+ */
+public class CachingRooTemplate implements RooTemplate {
+
+	private static final int GENERATION_STRIPES = 64;
+
+	private final RooTemplate rooTemplate;
+
+	private final BoundedCache<String, List<UserConnection>> userConnectionsCache;
+
+	private final BoundedCache<CacheKey, List<UserConnection>> providerConnectionsCache;
+
+	private final BoundedCache<CacheKey, List<UserConnection>> providerUserConnectionsCache;
+
+	private boolean reverseLookupCacheEnabled;
+
+	/**
+	 * Guards the generations below along with the puts and evictions which
+	 * compare and advance them.
+	 */
+	private final Object generationLock = new Object();
+
+	/**
+	 * Count of invalidations of the users hashing to each stripe, advanced on
+	 * every eviction so that loads started before it are not cached.
+	 */
+	private final long[] userGenerations = new long[GENERATION_STRIPES];
+
+	/**
+	 * Count of invalidations of the connections cached by provider user, which
+	 * may belong to any user.
+	 */
+	private long providerUserGeneration;
+
+	/**
+	 * @param rooTemplate
+	 *            the template to delegate to
+	 * @param maximumSize
+	 *            the maximum number of cached entries, applied separately to
+	 *            entries keyed by user, by user and provider, and by provider
+	 *            user
+	 * @param timeToLiveMillis
+	 *            time in milliseconds after which cached entries expire, or
+	 *            zero or less for no expiry
+	 */
+	public CachingRooTemplate(RooTemplate rooTemplate, int maximumSize,
+			long timeToLiveMillis) {
+		this.rooTemplate = rooTemplate;
+		this.userConnectionsCache = new BoundedCache<String, List<UserConnection>>(
+				maximumSize, timeToLiveMillis);
+		this.providerConnectionsCache = new BoundedCache<CacheKey, List<UserConnection>>(
+				maximumSize, timeToLiveMillis);
+		this.providerUserConnectionsCache = new BoundedCache<CacheKey, List<UserConnection>>(
+				maximumSize, timeToLiveMillis);
+	}
+
+	/**
+	 * Whether to also cache the connections made to each provider user, as
+	 * looked up on provider sign-in by
+	 * {@link RooUsersConnectionRepository#findUserIdsWithConnection}. Entries
+	 * are kept consistent with connections added and removed through this
+	 * template, but not with writes made by other processes, so this should
+	 * only be enabled when all writes go through a single template or a short
+	 * time to live is acceptable. Defaults to false.
+	 */
+	public void setReverseLookupCacheEnabled(boolean reverseLookupCacheEnabled) {
+		this.reverseLookupCacheEnabled = reverseLookupCacheEnabled;
+		if (!reverseLookupCacheEnabled) {
+			providerUserConnectionsCache.clear();
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId) {
+		if (isTransactionActive()) {
+			return rooTemplate.getAllUserConnections(userId);
+		}
+		List<UserConnection> userConnections = userConnectionsCache
+				.get(userId);
+		if (userConnections == null) {
+			long generation = getUserGeneration(userId);
+			userConnections = Collections.unmodifiableList(rooTemplate
+					.getAllUserConnections(userId));
+			putIfNotInvalidated(userConnectionsCache, userId, userConnections,
+					userId, generation);
+		}
+		return copy(userConnections);
+	}
+
+	/**
+	 * Returns the cached connections of the users whose connections are
+	 * cached, and queries the connections of the remaining users in one call
+	 * to the underlying template, caching them per user.
+	 */
+	@Override
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds) {
+		if (isTransactionActive()) {
+			return rooTemplate.getAllUserConnections(userIds);
+		}
+		Map<String, List<UserConnection>> userConnectionsByUserId = new LinkedHashMap<String, List<UserConnection>>();
+		List<String> uncachedUserIds = new ArrayList<String>();
+		for (String userId : userIds) {
+			if (!userConnectionsByUserId.containsKey(userId)) {
+				List<UserConnection> userConnections = userConnectionsCache
+						.get(userId);
+				if (userConnections == null) {
+					uncachedUserIds.add(userId);
+				}
+				userConnectionsByUserId.put(userId, userConnections);
+			}
+		}
+		if (!uncachedUserIds.isEmpty()) {
+			Map<String, Long> generations = new HashMap<String, Long>();
+			Map<String, List<UserConnection>> loadedUserConnections = new HashMap<String, List<UserConnection>>();
+			for (String userId : uncachedUserIds) {
+				generations.put(userId, getUserGeneration(userId));
+				loadedUserConnections.put(userId,
+						new ArrayList<UserConnection>());
+			}
+			for (UserConnection userConnection : rooTemplate
+					.getAllUserConnections(uncachedUserIds)) {
+				List<UserConnection> userConnections = loadedUserConnections
+						.get(userConnection.getUserId());
+				if (userConnections != null) {
+					userConnections.add(userConnection);
+				}
+			}
+			for (String userId : uncachedUserIds) {
+				List<UserConnection> userConnections = Collections
+						.unmodifiableList(loadedUserConnections.get(userId));
+				putIfNotInvalidated(userConnectionsCache, userId,
+						userConnections, userId, generations.get(userId));
+				userConnectionsByUserId.put(userId, userConnections);
+			}
+		}
+		List<UserConnection> allUserConnections = new ArrayList<UserConnection>();
+		for (List<UserConnection> userConnections : userConnectionsByUserId
+				.values()) {
+			for (UserConnection userConnection : userConnections) {
+				allUserConnections.add(userConnection.copy());
+			}
+		}
+		return allUserConnections;
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			String providerId) {
+		if (isTransactionActive()) {
+			return rooTemplate.getAllUserConnections(userId, providerId);
+		}
+		return copy(getCachedUserConnections(userId, providerId));
+	}
+
+	@Override
+	public UserConnection getUserConnection(String userId, String providerId,
+			String providerUserId) {
+		if (isTransactionActive()) {
+			return rooTemplate.getUserConnection(userId, providerId,
+					providerUserId);
+		}
+		for (UserConnection userConnection : getCachedUserConnections(userId,
+				providerId)) {
+			if (userConnection.getProviderUserId().equals(providerUserId)) {
+				return userConnection.copy();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<UserConnection> getPrimaryUserConnections(String userId,
+			String providerId) {
+		if (isTransactionActive()) {
+			return rooTemplate.getPrimaryUserConnections(userId, providerId);
+		}
+		List<UserConnection> primaryUserConnections = new ArrayList<UserConnection>(
+				1);
+		for (UserConnection userConnection : getCachedUserConnections(userId,
+				providerId)) {
+			if (userConnection.getRank() == 1) {
+				primaryUserConnections.add(userConnection.copy());
+			}
+		}
+		return primaryUserConnections;
+	}
+
+	@Override
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId) {
+		if (isTransactionActive()) {
+			return rooTemplate.getPrimaryUserConnection(userId, providerId);
+		}
+		List<UserConnection> userConnections = getCachedUserConnections(
+				userId, providerId);
+		return userConnections.isEmpty() ? null : userConnections.get(0)
+				.copy();
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			MultiValueMap<String, String> providerUsers) {
+		return rooTemplate.getAllUserConnections(userId, providerUsers);
+	}
+
+	@Override
+	public List<UserConnection> getUserConnections(String providerId,
+			String providerUserId) {
+		if (!reverseLookupCacheEnabled || isTransactionActive()) {
+			return rooTemplate.getUserConnections(providerId, providerUserId);
+		}
+		CacheKey key = new CacheKey(providerId, providerUserId);
+		List<UserConnection> userConnections = providerUserConnectionsCache
+				.get(key);
+		if (userConnections == null) {
+			long generation = getProviderUserGeneration();
+			userConnections = Collections.unmodifiableList(rooTemplate
+					.getUserConnections(providerId, providerUserId));
+			synchronized (generationLock) {
+				if (providerUserGeneration == generation) {
+					providerUserConnectionsCache.put(key, userConnections);
+				}
+			}
+		}
+		return copy(userConnections);
+	}
+
+	@Override
+	public Set<String> findUsersConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		return rooTemplate.findUsersConnectedTo(providerId, providerUserIds);
+	}
+
+	@Override
+	public int getRank(String userId, String providerId) {
+		return rooTemplate.getRank(userId, providerId);
+	}
+
+	@Override
+	public UserConnection saveUserConnection(UserConnection userConnection) {
+		try {
+			return rooTemplate.saveUserConnection(userConnection);
+		} finally {
+			invalidate(userConnection.getUserId(),
+					userConnection.getProviderId(),
+					userConnection.getProviderUserId());
+		}
+	}
+
+	@Override
+	public UserConnection createUserConnection(String userId,
+			String providerId, String providerUserId, int rank,
+			String displayName, String profileUrl, String imageUrl,
+			String accessToken, String secret, String refreshToken,
+			Long expireTime) {
+		try {
+			return rooTemplate.createUserConnection(userId, providerId,
+					providerUserId, rank, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime);
+		} finally {
+			invalidate(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime) {
+		try {
+			rooTemplate.addUserConnection(userId, providerId, providerUserId,
+					displayName, profileUrl, imageUrl, accessToken, secret,
+					refreshToken, expireTime);
+		} finally {
+			invalidate(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public void addUserConnections(List<UserConnection> userConnections) {
+		try {
+			rooTemplate.addUserConnections(userConnections);
+		} finally {
+			for (UserConnection userConnection : userConnections) {
+				invalidate(userConnection.getUserId(),
+						userConnection.getProviderId(),
+						userConnection.getProviderUserId());
+			}
+		}
+	}
+
+	@Override
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version) {
+		try {
+			return rooTemplate.updateUserConnection(userId, providerId,
+					providerUserId, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime, version);
+		} finally {
+			invalidate(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public int removeUserConnection(String userId, String providerId,
+			String providerUserId) {
+		try {
+			return rooTemplate.removeUserConnection(userId, providerId,
+					providerUserId);
+		} finally {
+			invalidate(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public int removeUserConnections(String userId, String providerId) {
+		try {
+			return rooTemplate.removeUserConnections(userId, providerId);
+		} finally {
+			invalidate(userId, providerId, null);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsAfter(Long afterId,
+			int maxResults) {
+		return rooTemplate.getUserConnectionsAfter(afterId, maxResults);
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			String providerId, long expireTime, UserConnection after,
+			int maxResults) {
+		return rooTemplate.getUserConnectionsExpiringBefore(providerId,
+				expireTime, after, maxResults);
+	}
+
+	@Override
+	public void createUserConnections(List<UserConnection> userConnections) {
+		try {
+			rooTemplate.createUserConnections(userConnections);
+		} finally {
+			for (UserConnection userConnection : userConnections) {
+				invalidate(userConnection.getUserId(),
+						userConnection.getProviderId(),
+						userConnection.getProviderUserId());
+			}
+		}
+	}
+
+	public long getHitCount() {
+		return userConnectionsCache.getHitCount()
+				+ providerConnectionsCache.getHitCount()
+				+ providerUserConnectionsCache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return userConnectionsCache.getMissCount()
+				+ providerConnectionsCache.getMissCount()
+				+ providerUserConnectionsCache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return userConnectionsCache.getEvictionCount()
+				+ providerConnectionsCache.getEvictionCount()
+				+ providerUserConnectionsCache.getEvictionCount();
+	}
+
+	/**
+	 * Removes all cached entries.
+	 */
+	public void clear() {
+		synchronized (generationLock) {
+			for (int i = 0; i < GENERATION_STRIPES; i++) {
+				userGenerations[i]++;
+			}
+			providerUserGeneration++;
+			userConnectionsCache.clear();
+			providerConnectionsCache.clear();
+			providerUserConnectionsCache.clear();
+		}
+	}
+
+	private List<UserConnection> getCachedUserConnections(String userId,
+			String providerId) {
+		CacheKey key = new CacheKey(userId, providerId);
+		List<UserConnection> userConnections = providerConnectionsCache
+				.get(key);
+		if (userConnections == null) {
+			long generation = getUserGeneration(userId);
+			userConnections = Collections.unmodifiableList(rooTemplate
+					.getAllUserConnections(userId, providerId));
+			putIfNotInvalidated(providerConnectionsCache, key, userConnections,
+					userId, generation);
+		}
+		return userConnections;
+	}
+
+	private long getUserGeneration(String userId) {
+		synchronized (generationLock) {
+			return userGenerations[getGenerationStripe(userId)];
+		}
+	}
+
+	private long getProviderUserGeneration() {
+		synchronized (generationLock) {
+			return providerUserGeneration;
+		}
+	}
+
+	/**
+	 * Caches connections loaded for the given user unless the user's entries
+	 * have been invalidated since the given generation was read, in which case
+	 * the connections may predate a write.
+	 */
+	private <K> void putIfNotInvalidated(
+			BoundedCache<K, List<UserConnection>> cache, K key,
+			List<UserConnection> userConnections, String userId,
+			long generation) {
+		synchronized (generationLock) {
+			if (userGenerations[getGenerationStripe(userId)] == generation) {
+				cache.put(key, userConnections);
+			}
+		}
+	}
+
+	private static int getGenerationStripe(String userId) {
+		return (userId.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+	}
+
+	private static List<UserConnection> copy(
+			List<UserConnection> userConnections) {
+		List<UserConnection> copies = new ArrayList<UserConnection>(
+				userConnections.size());
+		for (UserConnection userConnection : userConnections) {
+			copies.add(userConnection.copy());
+		}
+		return copies;
+	}
+
+	/**
+	 * Evicts the entries affected by a write to the given user's connections
+	 * to a provider, or to a single provider user when providerUserId is not
+	 * null.
+	 */
+	private void invalidate(final String userId, final String providerId,
+			final String providerUserId) {
+		evict(userId, providerId, providerUserId);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			// Entries read by other threads before this transaction commits
+			// would otherwise be cached with the state prior to this write
+			TransactionSynchronizationManager
+					.registerSynchronization(new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCompletion(int status) {
+							evict(userId, providerId, providerUserId);
+						}
+					});
+		}
+	}
+
+	private void evict(final String userId, final String providerId,
+			String providerUserId) {
+		synchronized (generationLock) {
+			userGenerations[getGenerationStripe(userId)]++;
+			providerUserGeneration++;
+			userConnectionsCache.remove(userId);
+			providerConnectionsCache.remove(new CacheKey(userId, providerId));
+			if (providerUserId != null) {
+				providerUserConnectionsCache.remove(new CacheKey(providerId,
+						providerUserId));
+			} else {
+				providerUserConnectionsCache
+						.removeAll(new BoundedCache.EntryFilter<CacheKey, List<UserConnection>>() {
+							public boolean accept(CacheKey key,
+									List<UserConnection> userConnections) {
+								if (!key.first.equals(providerId)) {
+									return false;
+								}
+								for (UserConnection userConnection : userConnections) {
+									if (userConnection.getUserId().equals(
+											userId)) {
+										return true;
+									}
+								}
+								return false;
+							}
+						});
+			}
+		}
+	}
+
+	private boolean isTransactionActive() {
+		return TransactionSynchronizationManager.isActualTransactionActive();
+	}
+
+	private static final class CacheKey {
+
+		private final String first;
+
+		private final String second;
+
+		private CacheKey(String first, String second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey otherKey = (CacheKey) other;
+			return first.equals(otherKey.first)
+					&& second.equals(otherKey.second);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * first.hashCode() + second.hashCode();
+		}
+
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import org.springframework.social.connect.Connection;
+
+/**
+ * Bounded cache of the Connection instances built from stored connections,
+ * keyed by the user, provider user, id and version of each stored
+ * connection. As every write to a stored connection increments its version,
+ * and a removed and re-added connection has a new id, a changed connection
+ * is built afresh while an unchanged one reuses the Connection, and the
+ * provider API binding, built for it before. Cached instances are handed out
+ * wrapped in a {@link CopyOnWriteConnection}, so that refreshing one does not
+ * change the connection read by other callers.
+ * 
+ * Connections stored without an id or version are not cached.
+ * 
+ * @author Michael Lavelle
+ */
+class ConnectionCache {
+
+	private final BoundedCache<Key, Connection<?>> connections;
+
+	/**
+	 * @param maximumSize
+	 *            the maximum number of cached connections, least recently
+	 *            used connections are evicted first
+	 */
+	public ConnectionCache(int maximumSize) {
+		this.connections = new BoundedCache<Key, Connection<?>>(maximumSize, 0);
+	}
+
+	/**
+	 * Returns the Connection built from the given version of the stored
+	 * connection, or null if none is cached.
+	 */
+	public Connection<?> get(UserConnection userConnection) {
+		Key key = createKey(userConnection);
+		return key == null ? null : connections.get(key);
+	}
+
+	public void put(UserConnection userConnection, Connection<?> connection) {
+		Key key = createKey(userConnection);
+		if (key != null) {
+			connections.put(key, connection);
+		}
+	}
+
+	public void clear() {
+		connections.clear();
+	}
+
+	public long getHitCount() {
+		return connections.getHitCount();
+	}
+
+	public long getMissCount() {
+		return connections.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return connections.getEvictionCount();
+	}
+
+	private static Key createKey(UserConnection userConnection) {
+		if (userConnection.getId() == null
+				|| userConnection.getVersion() == null) {
+			return null;
+		}
+		return new Key(userConnection);
+	}
+
+	private static final class Key {
+
+		private final String userId;
+
+		private final String providerId;
+
+		private final String providerUserId;
+
+		private final long id;
+
+		private final int version;
+
+		private Key(UserConnection userConnection) {
+			this.userId = userConnection.getUserId();
+			this.providerId = userConnection.getProviderId();
+			this.providerUserId = userConnection.getProviderUserId();
+			this.id = userConnection.getId().longValue();
+			this.version = userConnection.getVersion().intValue();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key otherKey = (Key) other;
+			return id == otherKey.id && version == otherKey.version
+					&& userId.equals(otherKey.userId)
+					&& providerId.equals(otherKey.providerId)
+					&& providerUserId.equals(otherKey.providerUserId);
+		}
+
+		@Override
+		public int hashCode() {
+			int hashCode = userId.hashCode();
+			hashCode = 31 * hashCode + providerId.hashCode();
+			hashCode = 31 * hashCode + providerUserId.hashCode();
+			hashCode = 31 * hashCode + (int) (id ^ (id >>> 32));
+			return 31 * hashCode + version;
+		}
+
+	}
+
+}
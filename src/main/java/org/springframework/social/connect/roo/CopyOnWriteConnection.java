@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactoryLocator;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.UserProfile;
+
+/**
+ * Connection returned for each read of a Connection instance held by a
+ * {@link ConnectionCache}. Reads delegate to the cached instance, and so
+ * share its provider API binding. refresh and sync, which change the state
+ * of a connection, are instead made on a private copy built from the cached
+ * instance's data on first use, so that a caller refreshing its connection
+ * never changes the connection read by other callers.
+ *
+ * Serialized as the connection it delegates to.
+ *
+ * @author Michael Lavelle
+ */
+class CopyOnWriteConnection<A> implements Connection<A> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient ConnectionFactoryLocator connectionFactoryLocator;
+
+	private Connection<A> connection;
+
+	private boolean copied;
+
+	public CopyOnWriteConnection(Connection<A> cachedConnection,
+			ConnectionFactoryLocator connectionFactoryLocator) {
+		this.connection = cachedConnection;
+		this.connectionFactoryLocator = connectionFactoryLocator;
+	}
+
+	public ConnectionKey getKey() {
+		return getConnection().getKey();
+	}
+
+	public String getDisplayName() {
+		return getConnection().getDisplayName();
+	}
+
+	public String getProfileUrl() {
+		return getConnection().getProfileUrl();
+	}
+
+	public String getImageUrl() {
+		return getConnection().getImageUrl();
+	}
+
+	public void sync() {
+		copy().sync();
+	}
+
+	public boolean test() {
+		return getConnection().test();
+	}
+
+	public boolean hasExpired() {
+		return getConnection().hasExpired();
+	}
+
+	public void refresh() {
+		copy().refresh();
+	}
+
+	public UserProfile fetchUserProfile() {
+		return getConnection().fetchUserProfile();
+	}
+
+	public void updateStatus(String message) {
+		getConnection().updateStatus(message);
+	}
+
+	public A getApi() {
+		return getConnection().getApi();
+	}
+
+	public ConnectionData createData() {
+		return getConnection().createData();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (other instanceof CopyOnWriteConnection) {
+			other = ((CopyOnWriteConnection<?>) other).getConnection();
+		}
+		return getConnection().equals(other);
+	}
+
+	@Override
+	public int hashCode() {
+		return getConnection().hashCode();
+	}
+
+	private synchronized Connection<A> getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Replaces the cached instance with a private copy, if not already done,
+	 * returning the copy.
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized Connection<A> copy() {
+		if (!copied) {
+			ConnectionData data = connection.createData();
+			connection = (Connection<A>) connectionFactoryLocator
+					.getConnectionFactory(data.getProviderId())
+					.createConnection(data);
+			copied = true;
+		}
+		return connection;
+	}
+
+	private Object writeReplace() {
+		return getConnection();
+	}
+
+}
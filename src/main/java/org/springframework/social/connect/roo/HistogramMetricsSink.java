@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Default MetricsSink, keeping an {@link OperationMetrics} histogram for each
+ * operation recorded. Once {@link #registerMBeans(MBeanServer)} is called,
+ * the metrics of each operation are registered as an MXBean named
+ * org.springframework.social.connect.roo:type=Operation,name=operation, so
+ * that they can be read from JConsole or any JMX client.
+ *
+ * @author Michael Lavelle
+ */
+public class HistogramMetricsSink implements MetricsSink {
+
+	public static final String DOMAIN = "org.springframework.social.connect.roo";
+
+	private final ConcurrentMap<String, OperationMetrics> operationMetrics = new ConcurrentHashMap<String, OperationMetrics>();
+
+	private volatile boolean enabled = true;
+
+	private volatile MBeanServer mBeanServer;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Whether to record operations. Can be changed at runtime. Defaults to
+	 * true.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void record(String operation, long elapsedNanos, int rows,
+			boolean failed) {
+		OperationMetrics metrics = operationMetrics.get(operation);
+		if (metrics == null) {
+			OperationMetrics newMetrics = new OperationMetrics(operation);
+			metrics = operationMetrics.putIfAbsent(operation, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+				MBeanServer mBeanServer = this.mBeanServer;
+				if (mBeanServer != null) {
+					registerMBean(mBeanServer, metrics);
+				}
+			}
+		}
+		metrics.record(elapsedNanos, rows, failed);
+	}
+
+	/**
+	 * Returns the metrics of the given operation, or null if it has not been
+	 * recorded.
+	 */
+	public OperationMetrics getOperationMetrics(String operation) {
+		return operationMetrics.get(operation);
+	}
+
+	/**
+	 * Returns the metrics of every operation recorded, by operation name.
+	 */
+	public Map<String, OperationMetrics> getOperationMetrics() {
+		return Collections
+				.<String, OperationMetrics> unmodifiableMap(operationMetrics);
+	}
+
+	/**
+	 * Resets the metrics of every operation recorded.
+	 */
+	public void reset() {
+		for (OperationMetrics metrics : operationMetrics.values()) {
+			metrics.reset();
+		}
+	}
+
+	/**
+	 * Registers the metrics of each operation recorded so far, and of each
+	 * operation recorded from now on, with the given MBeanServer.
+	 */
+	public void registerMBeans(MBeanServer mBeanServer) {
+		this.mBeanServer = mBeanServer;
+		for (OperationMetrics metrics : operationMetrics.values()) {
+			registerMBean(mBeanServer, metrics);
+		}
+	}
+
+	/**
+	 * Unregisters the metrics registered by
+	 * {@link #registerMBeans(MBeanServer)}.
+	 */
+	public void unregisterMBeans() {
+		MBeanServer mBeanServer = this.mBeanServer;
+		this.mBeanServer = null;
+		if (mBeanServer == null) {
+			return;
+		}
+		for (OperationMetrics metrics : operationMetrics.values()) {
+			try {
+				ObjectName objectName = getObjectName(metrics);
+				if (mBeanServer.isRegistered(objectName)) {
+					mBeanServer.unregisterMBean(objectName);
+				}
+			} catch (JMException e) {
+				throw new IllegalStateException(
+						"Unable to unregister metrics of operation "
+								+ metrics.getOperation(), e);
+			}
+		}
+	}
+
+	private void registerMBean(MBeanServer mBeanServer,
+			OperationMetrics metrics) {
+		try {
+			mBeanServer.registerMBean(metrics, getObjectName(metrics));
+		} catch (InstanceAlreadyExistsException e) {
+			// Registered concurrently by registerMBeans
+		} catch (JMException e) {
+			throw new IllegalStateException(
+					"Unable to register metrics of operation "
+							+ metrics.getOperation(), e);
+		}
+	}
+
+	private static ObjectName getObjectName(OperationMetrics metrics)
+			throws JMException {
+		return new ObjectName(DOMAIN + ":type=Operation,name="
+				+ ObjectName.quote(metrics.getOperation()));
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+/**
+ * Times operations for the instrumented decorators, recording them to a
+ * MetricsSink. Operations started while the sink is disabled are not timed
+ * or recorded.
+ *
+ * @author Michael Lavelle
+ */
+final class Instrumentation {
+
+	private static final long NOT_TIMED = Long.MIN_VALUE;
+
+	/**
+	 * Instrumentation which never times operations, used when no MetricsSink
+	 * has been configured.
+	 */
+	static final Instrumentation DISABLED = new Instrumentation(
+			new MetricsSink() {
+
+				public boolean isEnabled() {
+					return false;
+				}
+
+				public void record(String operation, long elapsedNanos,
+						int rows, boolean failed) {
+				}
+
+			});
+
+	private final MetricsSink metricsSink;
+
+	public Instrumentation(MetricsSink metricsSink) {
+		if (metricsSink == null) {
+			throw new IllegalArgumentException("metricsSink cannot be null");
+		}
+		this.metricsSink = metricsSink;
+	}
+
+	/**
+	 * Returns the start time of an operation, to be passed to
+	 * {@link #success(String, long, int)} or {@link #failure(String, long)}.
+	 */
+	public long start() {
+		return metricsSink.isEnabled() ? System.nanoTime() : NOT_TIMED;
+	}
+
+	public void success(String operation, long start, int rows) {
+		if (start != NOT_TIMED) {
+			metricsSink.record(operation, System.nanoTime() - start, rows,
+					false);
+		}
+	}
+
+	public void failure(String operation, long start) {
+		if (start != NOT_TIMED) {
+			metricsSink.record(operation, System.nanoTime() - start, -1,
+					true);
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.List;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * ConnectionRepository decorator recording the latency, outcome and number of
+ * connections of each operation to a MetricsSink, as operations named after
+ * the ConnectionRepository method, eg.
+ * "ConnectionRepository.findAllConnections". Overloaded methods are recorded
+ * as operations of their own: findConnections and getConnection taking an
+ * API type are recorded as "ConnectionRepository.findConnectionsByApiType"
+ * and "ConnectionRepository.getConnectionByApiType".
+ * 
+ * @author Michael Lavelle
+ */
+public class InstrumentedConnectionRepository implements ConnectionRepository {
+
+	private static final String FIND_ALL_CONNECTIONS = "ConnectionRepository.findAllConnections";
+
+	private static final String FIND_CONNECTIONS = "ConnectionRepository.findConnections";
+
+	private static final String FIND_CONNECTIONS_BY_API_TYPE = "ConnectionRepository.findConnectionsByApiType";
+
+	private static final String FIND_CONNECTIONS_TO_USERS = "ConnectionRepository.findConnectionsToUsers";
+
+	private static final String GET_CONNECTION = "ConnectionRepository.getConnection";
+
+	private static final String GET_CONNECTION_BY_API_TYPE = "ConnectionRepository.getConnectionByApiType";
+
+	private static final String GET_PRIMARY_CONNECTION = "ConnectionRepository.getPrimaryConnection";
+
+	private static final String FIND_PRIMARY_CONNECTION = "ConnectionRepository.findPrimaryConnection";
+
+	private static final String ADD_CONNECTION = "ConnectionRepository.addConnection";
+
+	private static final String UPDATE_CONNECTION = "ConnectionRepository.updateConnection";
+
+	private static final String REMOVE_CONNECTIONS = "ConnectionRepository.removeConnections";
+
+	private static final String REMOVE_CONNECTION = "ConnectionRepository.removeConnection";
+
+	private final ConnectionRepository connectionRepository;
+
+	private final Instrumentation instrumentation;
+
+	public InstrumentedConnectionRepository(
+			ConnectionRepository connectionRepository, MetricsSink metricsSink) {
+		this(connectionRepository, new Instrumentation(metricsSink));
+	}
+
+	InstrumentedConnectionRepository(ConnectionRepository connectionRepository,
+			Instrumentation instrumentation) {
+		this.connectionRepository = connectionRepository;
+		this.instrumentation = instrumentation;
+	}
+
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		long start = instrumentation.start();
+		try {
+			MultiValueMap<String, Connection<?>> result = connectionRepository
+					.findAllConnections();
+			instrumentation.success(FIND_ALL_CONNECTIONS, start, size(result));
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_ALL_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	public List<Connection<?>> findConnections(String providerId) {
+		long start = instrumentation.start();
+		try {
+			List<Connection<?>> result = connectionRepository
+					.findConnections(providerId);
+			instrumentation.success(FIND_CONNECTIONS, start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+		long start = instrumentation.start();
+		try {
+			List<Connection<A>> result = connectionRepository
+					.findConnections(apiType);
+			instrumentation.success(FIND_CONNECTIONS_BY_API_TYPE, start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_CONNECTIONS_BY_API_TYPE, start);
+			throw e;
+		}
+	}
+
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(
+			MultiValueMap<String, String> providerUsers) {
+		long start = instrumentation.start();
+		try {
+			MultiValueMap<String, Connection<?>> result = connectionRepository
+					.findConnectionsToUsers(providerUsers);
+			instrumentation.success(FIND_CONNECTIONS_TO_USERS, start,
+					size(result));
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_CONNECTIONS_TO_USERS, start);
+			throw e;
+		}
+	}
+
+	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		long start = instrumentation.start();
+		try {
+			Connection<?> result = connectionRepository
+					.getConnection(connectionKey);
+			instrumentation.success(GET_CONNECTION, start, 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	public <A> Connection<A> getConnection(Class<A> apiType,
+			String providerUserId) {
+		long start = instrumentation.start();
+		try {
+			Connection<A> result = connectionRepository.getConnection(apiType,
+					providerUserId);
+			instrumentation.success(GET_CONNECTION_BY_API_TYPE, start, 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_CONNECTION_BY_API_TYPE, start);
+			throw e;
+		}
+	}
+
+	public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+		long start = instrumentation.start();
+		try {
+			Connection<A> result = connectionRepository
+					.getPrimaryConnection(apiType);
+			instrumentation.success(GET_PRIMARY_CONNECTION, start, 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_PRIMARY_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+		long start = instrumentation.start();
+		try {
+			Connection<A> result = connectionRepository
+					.findPrimaryConnection(apiType);
+			instrumentation.success(FIND_PRIMARY_CONNECTION, start,
+					result == null ? 0 : 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_PRIMARY_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	public void addConnection(Connection<?> connection) {
+		long start = instrumentation.start();
+		try {
+			connectionRepository.addConnection(connection);
+			instrumentation.success(ADD_CONNECTION, start, 1);
+		} catch (RuntimeException e) {
+			instrumentation.failure(ADD_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	public void updateConnection(Connection<?> connection) {
+		long start = instrumentation.start();
+		try {
+			connectionRepository.updateConnection(connection);
+			instrumentation.success(UPDATE_CONNECTION, start, -1);
+		} catch (RuntimeException e) {
+			instrumentation.failure(UPDATE_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	public void removeConnections(String providerId) {
+		long start = instrumentation.start();
+		try {
+			connectionRepository.removeConnections(providerId);
+			instrumentation.success(REMOVE_CONNECTIONS, start, -1);
+		} catch (RuntimeException e) {
+			instrumentation.failure(REMOVE_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	public void removeConnection(ConnectionKey connectionKey) {
+		long start = instrumentation.start();
+		try {
+			connectionRepository.removeConnection(connectionKey);
+			instrumentation.success(REMOVE_CONNECTION, start, -1);
+		} catch (RuntimeException e) {
+			instrumentation.failure(REMOVE_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	private static int size(MultiValueMap<String, ?> values) {
+		int size = 0;
+		for (List<?> providerValues : values.values()) {
+			size += providerValues.size();
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.util.MultiValueMap;
+
+/**
+ * RooTemplate decorator recording the latency, outcome and number of rows of
+ * each operation to a MetricsSink, as operations named after the RooTemplate
+ * method, eg. "RooTemplate.getAllUserConnections". Overloaded methods are
+ * recorded as operations of their own, so that the latencies and rows of a
+ * single user lookup are not mixed with those of a bulk lookup: the
+ * getAllUserConnections overloads taking a provider id, provider users and
+ * several user ids are recorded as
+ * "RooTemplate.getAllUserConnectionsByProvider",
+ * "RooTemplate.getAllUserConnectionsForProviderUsers" and
+ * "RooTemplate.getAllUserConnectionsForUsers".
+ *
+ * @author Michael Lavelle
+ */
+public class InstrumentedRooTemplate implements RooTemplate {
+
+	private static final String GET_ALL_USER_CONNECTIONS = "RooTemplate.getAllUserConnections";
+
+	private static final String GET_ALL_USER_CONNECTIONS_BY_PROVIDER = "RooTemplate.getAllUserConnectionsByProvider";
+
+	private static final String GET_ALL_USER_CONNECTIONS_FOR_PROVIDER_USERS = "RooTemplate.getAllUserConnectionsForProviderUsers";
+
+	private static final String GET_ALL_USER_CONNECTIONS_FOR_USERS = "RooTemplate.getAllUserConnectionsForUsers";
+
+	private static final String GET_USER_CONNECTION = "RooTemplate.getUserConnection";
+
+	private static final String GET_PRIMARY_USER_CONNECTIONS = "RooTemplate.getPrimaryUserConnections";
+
+	private static final String GET_PRIMARY_USER_CONNECTION = "RooTemplate.getPrimaryUserConnection";
+
+	private static final String GET_USER_CONNECTIONS = "RooTemplate.getUserConnections";
+
+	private static final String FIND_USERS_CONNECTED_TO = "RooTemplate.findUsersConnectedTo";
+
+	private static final String GET_RANK = "RooTemplate.getRank";
+
+	private static final String SAVE_USER_CONNECTION = "RooTemplate.saveUserConnection";
+
+	private static final String CREATE_USER_CONNECTION = "RooTemplate.createUserConnection";
+
+	private static final String ADD_USER_CONNECTION = "RooTemplate.addUserConnection";
+
+	private static final String UPDATE_USER_CONNECTION = "RooTemplate.updateUserConnection";
+
+	private static final String REMOVE_USER_CONNECTION = "RooTemplate.removeUserConnection";
+
+	private static final String REMOVE_USER_CONNECTIONS = "RooTemplate.removeUserConnections";
+
+	private static final String GET_USER_CONNECTIONS_AFTER = "RooTemplate.getUserConnectionsAfter";
+
+	private static final String CREATE_USER_CONNECTIONS = "RooTemplate.createUserConnections";
+
+	private static final String GET_USER_CONNECTIONS_EXPIRING_BEFORE = "RooTemplate.getUserConnectionsExpiringBefore";
+
+	private static final String ADD_USER_CONNECTIONS = "RooTemplate.addUserConnections";
+
+	private final RooTemplate rooTemplate;
+
+	private final Instrumentation instrumentation;
+
+	public InstrumentedRooTemplate(RooTemplate rooTemplate,
+			MetricsSink metricsSink) {
+		this.rooTemplate = rooTemplate;
+		this.instrumentation = new Instrumentation(metricsSink);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getAllUserConnections(userId);
+			instrumentation.success(GET_ALL_USER_CONNECTIONS, start,
+					result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_ALL_USER_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getAllUserConnections(userIds);
+			instrumentation.success(GET_ALL_USER_CONNECTIONS_FOR_USERS,
+					start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_ALL_USER_CONNECTIONS_FOR_USERS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			String providerId) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getAllUserConnections(userId, providerId);
+			instrumentation.success(GET_ALL_USER_CONNECTIONS_BY_PROVIDER,
+					start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_ALL_USER_CONNECTIONS_BY_PROVIDER, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public UserConnection getUserConnection(String userId, String providerId,
+			String providerUserId) {
+		long start = instrumentation.start();
+		try {
+			UserConnection result = rooTemplate.getUserConnection(userId,
+					providerId, providerUserId);
+			instrumentation.success(GET_USER_CONNECTION, start,
+					result == null ? 0 : 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getPrimaryUserConnections(String userId,
+			String providerId) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getPrimaryUserConnections(userId, providerId);
+			instrumentation.success(GET_PRIMARY_USER_CONNECTIONS, start,
+					result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_PRIMARY_USER_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId) {
+		long start = instrumentation.start();
+		try {
+			UserConnection result = rooTemplate.getPrimaryUserConnection(
+					userId, providerId);
+			instrumentation.success(GET_PRIMARY_USER_CONNECTION, start,
+					result == null ? 0 : 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_PRIMARY_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			MultiValueMap<String, String> providerUsers) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getAllUserConnections(userId, providerUsers);
+			instrumentation.success(GET_ALL_USER_CONNECTIONS_FOR_PROVIDER_USERS,
+					start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_ALL_USER_CONNECTIONS_FOR_PROVIDER_USERS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnections(String providerId,
+			String providerUserId) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getUserConnections(providerId, providerUserId);
+			instrumentation.success(GET_USER_CONNECTIONS, start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_USER_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public Set<String> findUsersConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		long start = instrumentation.start();
+		try {
+			Set<String> result = rooTemplate.findUsersConnectedTo(providerId,
+					providerUserIds);
+			instrumentation.success(FIND_USERS_CONNECTED_TO, start,
+					result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_USERS_CONNECTED_TO, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int getRank(String userId, String providerId) {
+		long start = instrumentation.start();
+		try {
+			int result = rooTemplate.getRank(userId, providerId);
+			instrumentation.success(GET_RANK, start, -1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_RANK, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public UserConnection saveUserConnection(UserConnection userConnection) {
+		long start = instrumentation.start();
+		try {
+			UserConnection result = rooTemplate
+					.saveUserConnection(userConnection);
+			instrumentation.success(SAVE_USER_CONNECTION, start, 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(SAVE_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public UserConnection createUserConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		long start = instrumentation.start();
+		try {
+			UserConnection result = rooTemplate.createUserConnection(userId,
+					providerId, providerUserId, rank, displayName, profileUrl,
+					imageUrl, accessToken, secret, refreshToken, expireTime);
+			instrumentation.success(CREATE_USER_CONNECTION, start, 1);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(CREATE_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime) {
+		long start = instrumentation.start();
+		try {
+			rooTemplate.addUserConnection(userId, providerId, providerUserId,
+					displayName, profileUrl, imageUrl, accessToken, secret,
+					refreshToken, expireTime);
+			instrumentation.success(ADD_USER_CONNECTION, start, 1);
+		} catch (RuntimeException e) {
+			instrumentation.failure(ADD_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version) {
+		long start = instrumentation.start();
+		try {
+			int result = rooTemplate.updateUserConnection(userId, providerId,
+					providerUserId, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime, version);
+			instrumentation.success(UPDATE_USER_CONNECTION, start, result);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(UPDATE_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int removeUserConnection(String userId, String providerId,
+			String providerUserId) {
+		long start = instrumentation.start();
+		try {
+			int result = rooTemplate.removeUserConnection(userId, providerId,
+					providerUserId);
+			instrumentation.success(REMOVE_USER_CONNECTION, start, result);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(REMOVE_USER_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int removeUserConnections(String userId, String providerId) {
+		long start = instrumentation.start();
+		try {
+			int result = rooTemplate.removeUserConnections(userId, providerId);
+			instrumentation.success(REMOVE_USER_CONNECTIONS, start, result);
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(REMOVE_USER_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsAfter(Long afterId,
+			int maxResults) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate.getUserConnectionsAfter(
+					afterId, maxResults);
+			instrumentation.success(GET_USER_CONNECTIONS_AFTER, start,
+					result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_USER_CONNECTIONS_AFTER, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void createUserConnections(List<UserConnection> userConnections) {
+		long start = instrumentation.start();
+		try {
+			rooTemplate.createUserConnections(userConnections);
+			instrumentation.success(CREATE_USER_CONNECTIONS, start,
+					userConnections.size());
+		} catch (RuntimeException e) {
+			instrumentation.failure(CREATE_USER_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			String providerId, long expireTime, UserConnection after,
+			int maxResults) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> result = rooTemplate
+					.getUserConnectionsExpiringBefore(providerId, expireTime,
+							after, maxResults);
+			instrumentation.success(GET_USER_CONNECTIONS_EXPIRING_BEFORE,
+					start, result.size());
+			return result;
+		} catch (RuntimeException e) {
+			instrumentation.failure(GET_USER_CONNECTIONS_EXPIRING_BEFORE,
+					start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void addUserConnections(List<UserConnection> userConnections) {
+		long start = instrumentation.start();
+		try {
+			rooTemplate.addUserConnections(userConnections);
+			instrumentation.success(ADD_USER_CONNECTIONS, start,
+					userConnections.size());
+		} catch (RuntimeException e) {
+			instrumentation.failure(ADD_USER_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * TextEncryptor decorator recording the time spent encrypting and decrypting
+ * tokens to a MetricsSink, as operations "TextEncryptor.encrypt" and
+ * "TextEncryptor.decrypt".
+ *
+ * @author Michael Lavelle
+ */
+public class InstrumentedTextEncryptor implements TextEncryptor {
+
+	private final TextEncryptor textEncryptor;
+
+	private final Instrumentation instrumentation;
+
+	public InstrumentedTextEncryptor(TextEncryptor textEncryptor,
+			MetricsSink metricsSink) {
+		this.textEncryptor = textEncryptor;
+		this.instrumentation = new Instrumentation(metricsSink);
+	}
+
+	public String encrypt(String text) {
+		long start = instrumentation.start();
+		try {
+			String encryptedText = textEncryptor.encrypt(text);
+			instrumentation.success("TextEncryptor.encrypt", start, -1);
+			return encryptedText;
+		} catch (RuntimeException e) {
+			instrumentation.failure("TextEncryptor.encrypt", start);
+			throw e;
+		}
+	}
+
+	public String decrypt(String encryptedText) {
+		long start = instrumentation.start();
+		try {
+			String text = textEncryptor.decrypt(encryptedText);
+			instrumentation.success("TextEncryptor.decrypt", start, -1);
+			return text;
+		} catch (RuntimeException e) {
+			instrumentation.failure("TextEncryptor.decrypt", start);
+			throw e;
+		}
+	}
+
+}
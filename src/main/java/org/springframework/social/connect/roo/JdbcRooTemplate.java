@@ -0,0 +1,599 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.DuplicateConnectionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * RooTemplate implementation using plain JDBC prepared statements against the
+ * user_connection table, mapping rows straight into UserConnection instances.
+ * Unlike RooUserConnectionTemplate, no JPQL is parsed and no persistence
+ * context is involved, so returned UserConnections are plain detached
+ * objects: changes to them are only written through saveUserConnection.
+ *
+ * Each method runs a single statement, so no transaction is required, other
+ * than removeUserConnection, which runs its delete and the moving up of the
+ * ranks after the removed connection in a transaction of its own, or in the
+ * surrounding transaction if any. When a transaction is needed across several
+ * calls, use a transaction manager synchronizing on the same DataSource, such
+ * as DataSourceTransactionManager.
+ *
+ * @author Michael Lavelle
+ */
+public class JdbcRooTemplate implements RooTemplate {
+
+	/**
+	 * Number of times addUserConnection attempts its insert when concurrent
+	 * inserts for the same user and provider take the rank it allocated.
+	 */
+	private static final int MAX_ADD_ATTEMPTS = 5;
+
+	private static final String SELECT_FROM_USER_CONNECTION = "select id, user_id, provider_id, provider_user_id, rank, display_name, profile_url, image_url, access_token, secret, refresh_token, expire_time, version from user_connection";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+	/**
+	 * Connections are built by copying this prototype, as constructing a
+	 * UserConnection has the Spring container configure it, which costs far
+	 * more than mapping a row.
+	 */
+	private final UserConnection userConnectionPrototype = new UserConnection();
+
+	private final RowMapper<UserConnection> userConnectionMapper = new UserConnectionMapper(
+			userConnectionPrototype);
+
+	private final TransactionTemplate transactionTemplate;
+
+	private int inClauseChunkSize = 500;
+
+	public JdbcRooTemplate(DataSource dataSource) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource));
+		this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(
+				jdbcTemplate);
+	}
+
+	/**
+	 * Maximum number of values bound into a single IN clause. Larger sets of
+	 * values are queried in chunks of this size. Defaults to 500.
+	 */
+	public void setInClauseChunkSize(int inClauseChunkSize) {
+		if (inClauseChunkSize < 1) {
+			throw new IllegalArgumentException(
+					"inClauseChunkSize must be greater than zero");
+		}
+		this.inClauseChunkSize = inClauseChunkSize;
+	}
+
+	@Override
+	public Set<String> findUsersConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		Set<String> userIds = new HashSet<String>();
+		for (List<String> providerUserIdsChunk : RooUserConnectionTemplate
+				.partition(providerUserIds, inClauseChunkSize)) {
+			MapSqlParameterSource parameters = new MapSqlParameterSource();
+			parameters.addValue("providerId", providerId);
+			parameters.addValue("providerUserIds", providerUserIdsChunk);
+			userIds.addAll(namedParameterJdbcTemplate
+					.queryForList(
+							"select distinct user_id from user_connection where provider_id = :providerId and provider_user_id in (:providerUserIds)",
+							parameters, String.class));
+		}
+		return userIds;
+	}
+
+	@Override
+	public List<UserConnection> getPrimaryUserConnections(String userId,
+			String providerId) {
+		return jdbcTemplate.query(SELECT_FROM_USER_CONNECTION
+				+ " where user_id = ? and provider_id = ? and rank = 1",
+				userConnectionMapper, userId, providerId);
+	}
+
+	@Override
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId) {
+		List<UserConnection> userConnections = queryForUserConnections(1,
+				SELECT_FROM_USER_CONNECTION
+						+ " where user_id = ? and provider_id = ? order by rank",
+				userId, providerId);
+		return userConnections.isEmpty() ? null : userConnections.get(0);
+	}
+
+	@Override
+	public int getRank(String userId, String providerId) {
+		Integer maxRank = jdbcTemplate
+				.queryForObject(
+						"select max(rank) from user_connection where user_id = ? and provider_id = ?",
+						Integer.class, userId, providerId);
+		return maxRank == null ? 1 : (maxRank.intValue() + 1);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			MultiValueMap<String, String> providerUsers) {
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (Map.Entry<String, List<String>> providerUsersEntry : providerUsers
+				.entrySet()) {
+			List<UserConnection> providerUserConnections = new ArrayList<UserConnection>();
+			for (List<String> providerUserIdsChunk : RooUserConnectionTemplate
+					.partition(new LinkedHashSet<String>(providerUsersEntry
+							.getValue()), inClauseChunkSize)) {
+				MapSqlParameterSource parameters = new MapSqlParameterSource();
+				parameters.addValue("userId", userId);
+				parameters.addValue("providerId", providerUsersEntry.getKey());
+				parameters.addValue("providerUserIds", providerUserIdsChunk);
+				providerUserConnections
+						.addAll(namedParameterJdbcTemplate.query(
+								SELECT_FROM_USER_CONNECTION
+										+ " where user_id = :userId and provider_id = :providerId and provider_user_id in (:providerUserIds)",
+								parameters, userConnectionMapper));
+			}
+			userConnections.addAll(RooUserConnectionTemplate
+					.inProviderUserIdOrder(providerUsersEntry.getValue(),
+							providerUserConnections));
+		}
+		return userConnections;
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId) {
+		return jdbcTemplate.query(SELECT_FROM_USER_CONNECTION
+				+ " where user_id = ? order by provider_id, rank",
+				userConnectionMapper, userId);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds) {
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (List<String> userIdsChunk : RooUserConnectionTemplate.partition(
+				new LinkedHashSet<String>(userIds), inClauseChunkSize)) {
+			userConnections.addAll(namedParameterJdbcTemplate.query(
+					SELECT_FROM_USER_CONNECTION
+							+ " where user_id in (:userIds) order by user_id, provider_id, rank",
+					new MapSqlParameterSource("userIds", userIdsChunk),
+					userConnectionMapper));
+		}
+		return userConnections;
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			String providerId) {
+		return jdbcTemplate.query(SELECT_FROM_USER_CONNECTION
+				+ " where user_id = ? and provider_id = ? order by rank",
+				userConnectionMapper, userId, providerId);
+	}
+
+	@Override
+	public UserConnection getUserConnection(String userId, String providerId,
+			String providerUserId) {
+		List<UserConnection> userConnections = jdbcTemplate
+				.query(SELECT_FROM_USER_CONNECTION
+						+ " where user_id = ? and provider_id = ? and provider_user_id = ?",
+						userConnectionMapper, userId, providerId,
+						providerUserId);
+		return userConnections.isEmpty() ? null : userConnections.get(0);
+	}
+
+	@Override
+	public List<UserConnection> getUserConnections(String providerId,
+			String providerUserId) {
+		return jdbcTemplate.query(SELECT_FROM_USER_CONNECTION
+				+ " where provider_id = ? and provider_user_id = ? order by rank",
+				userConnectionMapper, providerId, providerUserId);
+	}
+
+	@Override
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version) {
+		return jdbcTemplate
+				.update("update user_connection set display_name = ?, profile_url = ?, image_url = ?, access_token = ?, secret = ?, refresh_token = ?, expire_time = ?, version = coalesce(version, 0) + 1"
+						+ " where user_id = ? and provider_id = ? and provider_user_id = ? and coalesce(version, 0) = ?",
+						displayName, profileUrl, imageUrl, accessToken, secret,
+						refreshToken, expireTime, userId, providerId,
+						providerUserId, version == null ? 0 : version);
+	}
+
+	@Override
+	public int removeUserConnections(String userId, String providerId) {
+		return jdbcTemplate.update(
+				"delete from user_connection where user_id = ? and provider_id = ?",
+				userId, providerId);
+	}
+
+	@Override
+	public int removeUserConnection(final String userId,
+			final String providerId, final String providerUserId) {
+		return transactionTemplate.execute(new TransactionCallback<Integer>() {
+			public Integer doInTransaction(TransactionStatus status) {
+				List<Integer> ranks = jdbcTemplate
+						.queryForList(
+								"select rank from user_connection where user_id = ? and provider_id = ? and provider_user_id = ?",
+								Integer.class, userId, providerId,
+								providerUserId);
+				if (ranks.isEmpty()) {
+					return 0;
+				}
+				int removed = jdbcTemplate
+						.update("delete from user_connection where user_id = ? and provider_id = ? and provider_user_id = ?",
+								userId, providerId, providerUserId);
+				if (removed > 0) {
+					// negated first, as the unique rank index is checked row
+					// by row on eg. MySQL and PostgreSQL
+					jdbcTemplate
+							.update("update user_connection set rank = -rank"
+									+ " where user_id = ? and provider_id = ? and rank > ?",
+									userId, providerId, ranks.get(0));
+					jdbcTemplate
+							.update("update user_connection set rank = -rank - 1, version = coalesce(version, 0) + 1"
+									+ " where user_id = ? and provider_id = ? and rank < 0",
+									userId, providerId);
+				}
+				return removed;
+			}
+		});
+	}
+
+	@Override
+	public UserConnection createUserConnection(String userId,
+			String providerId, String providerUserId, int rank,
+			String displayName, String profileUrl, String imageUrl,
+			String accessToken, String secret, String refreshToken,
+			Long expireTime) {
+		UserConnection userConnection = userConnectionPrototype.copy();
+		userConnection.setUserId(userId);
+		userConnection.setProviderId(providerId);
+		userConnection.setProviderUserId(providerUserId);
+		userConnection.setRank(rank);
+		userConnection.setDisplayName(displayName);
+		userConnection.setProfileUrl(profileUrl);
+		userConnection.setImageUrl(imageUrl);
+		userConnection.setAccessToken(accessToken);
+		userConnection.setSecret(secret);
+		userConnection.setRefreshToken(refreshToken);
+		userConnection.setExpireTime(expireTime);
+		return saveUserConnection(userConnection);
+	}
+
+	/**
+	 * Inserts the connection with the next free rank in a single statement,
+	 * which inserts nothing if the user is already connected to the provider
+	 * user. A concurrent insert for the same user and provider can still take
+	 * the same rank, violating the user_connection_rank index, in which case
+	 * the insert is retried after a short random pause - unless it is part of
+	 * a transaction started by the caller, which can no longer be used. Only
+	 * unique index violations are retried.
+	 */
+	@Override
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime) {
+		boolean retryable = !TransactionSynchronizationManager
+				.isActualTransactionActive();
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (insertUserConnectionWithNextRank(userId, providerId,
+						providerUserId, displayName, profileUrl, imageUrl,
+						accessToken, secret, refreshToken, expireTime) == 0) {
+					throw new DuplicateConnectionException(new ConnectionKey(
+							providerId, providerUserId));
+				}
+				return;
+			} catch (DataIntegrityViolationException e) {
+				if (!retryable || attempt == MAX_ADD_ATTEMPTS) {
+					throw e;
+				}
+				RooUserConnectionTemplate.backOff(attempt, e);
+			}
+		}
+	}
+
+	protected int insertUserConnectionWithNextRank(String userId,
+			String providerId, String providerUserId, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		return jdbcTemplate.update(
+				RooUserConnectionTemplate.INSERT_USER_CONNECTION_WITH_NEXT_RANK,
+				new Object[] { userId, providerId, providerUserId,
+						displayName, profileUrl, imageUrl, accessToken, secret,
+						refreshToken, expireTime, userId, providerId,
+						providerUserId }, new int[] { Types.VARCHAR,
+						Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+						Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+						Types.VARCHAR, Types.VARCHAR, Types.BIGINT,
+						Types.VARCHAR, Types.VARCHAR, Types.VARCHAR });
+	}
+
+	/**
+	 * Allocates ranks with a query per user and provider, then inserts the
+	 * connections in a single JDBC batch, within one transaction. A unique
+	 * index violation caused by a concurrent insert of one of the connections
+	 * is reported as a DuplicateConnectionException.
+	 */
+	@Override
+	public void addUserConnections(final List<UserConnection> userConnections) {
+		try {
+			transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+				protected void doInTransactionWithoutResult(
+						TransactionStatus status) {
+					RooUserConnectionTemplate.rankUserConnections(
+							JdbcRooTemplate.this, userConnections);
+					createUserConnections(userConnections);
+				}
+			});
+		} catch (DuplicateKeyException e) {
+			for (UserConnection userConnection : userConnections) {
+				if (getUserConnection(userConnection.getUserId(),
+						userConnection.getProviderId(),
+						userConnection.getProviderUserId()) != null) {
+					throw new DuplicateConnectionException(new ConnectionKey(
+							userConnection.getProviderId(),
+							userConnection.getProviderUserId()));
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Inserts the connection if it has no id, otherwise updates it, failing
+	 * with an OptimisticLockingFailureException if it has been updated since
+	 * it was read.
+	 */
+	@Override
+	public UserConnection saveUserConnection(UserConnection userConnection) {
+		if (userConnection.getId() == null) {
+			insertUserConnection(userConnection);
+		} else {
+			updateUserConnection(userConnection);
+		}
+		return userConnection;
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsAfter(Long afterId,
+			int maxResults) {
+		return queryForUserConnections(maxResults, SELECT_FROM_USER_CONNECTION
+				+ " where id > ? order by id", afterId == null ? Long.MIN_VALUE
+				: afterId);
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			String providerId, long expireTime, UserConnection after,
+			int maxResults) {
+		long afterExpireTime = after == null ? Long.MIN_VALUE : after
+				.getExpireTime();
+		long afterId = after == null ? Long.MIN_VALUE : after.getId();
+		return queryForUserConnections(
+				maxResults,
+				SELECT_FROM_USER_CONNECTION
+						+ " where provider_id = ? and expire_time < ? and (expire_time > ? or (expire_time = ? and id > ?)) order by expire_time, id",
+				providerId, expireTime, afterExpireTime, afterExpireTime,
+				afterId);
+	}
+
+	/**
+	 * Queries the first maxRows connections selected by the given statement.
+	 * Rows are limited with Statement.setMaxRows rather than a limit clause,
+	 * which is not standard SQL, so that the template runs on any database.
+	 */
+	private List<UserConnection> queryForUserConnections(final int maxRows,
+			final String sql, Object... args) {
+		final ArgumentPreparedStatementSetter argumentSetter = new ArgumentPreparedStatementSetter(
+				args);
+		return jdbcTemplate.query(new PreparedStatementCreator() {
+			public PreparedStatement createPreparedStatement(
+					Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				statement.setMaxRows(maxRows);
+				argumentSetter.setValues(statement);
+				return statement;
+			}
+		}, userConnectionMapper);
+	}
+
+	/**
+	 * Inserts the connections in a single JDBC batch. Unless called within a
+	 * transaction, the connections inserted before a failing insert remain
+	 * inserted. The ids of the given connections are not set.
+	 */
+	@Override
+	public void createUserConnections(List<UserConnection> userConnections) {
+		insertUserConnections(jdbcTemplate, userConnections);
+	}
+
+	/**
+	 * Inserts the connections in a single JDBC batch with the given
+	 * JdbcTemplate, which RooUserConnectionTemplate also uses on the
+	 * connection of its JPA transaction.
+	 */
+	static void insertUserConnections(JdbcTemplate jdbcTemplate,
+			final List<UserConnection> userConnections) {
+		jdbcTemplate.batchUpdate(
+				RooUserConnectionTemplate.INSERT_USER_CONNECTION,
+				new BatchPreparedStatementSetter() {
+					public void setValues(PreparedStatement insert, int i)
+							throws SQLException {
+						UserConnection userConnection = userConnections.get(i);
+						insert.setString(1, userConnection.getUserId());
+						insert.setString(2, userConnection.getProviderId());
+						insert.setString(3, userConnection.getProviderUserId());
+						insert.setInt(4, userConnection.getRank());
+						insert.setString(5, userConnection.getDisplayName());
+						insert.setString(6, userConnection.getProfileUrl());
+						insert.setString(7, userConnection.getImageUrl());
+						insert.setString(8, userConnection.getAccessToken());
+						insert.setString(9, userConnection.getSecret());
+						insert.setString(10, userConnection.getRefreshToken());
+						insert.setObject(11, userConnection.getExpireTime(),
+								Types.BIGINT);
+					}
+
+					public int getBatchSize() {
+						return userConnections.size();
+					}
+				});
+	}
+
+	private void insertUserConnection(final UserConnection userConnection) {
+		KeyHolder keyHolder = new GeneratedKeyHolder();
+		try {
+			jdbcTemplate.update(new PreparedStatementCreator() {
+				public PreparedStatement createPreparedStatement(
+						Connection connection) throws SQLException {
+					PreparedStatement insert = connection
+							.prepareStatement(
+									RooUserConnectionTemplate.INSERT_USER_CONNECTION,
+									Statement.RETURN_GENERATED_KEYS);
+					insert.setString(1, userConnection.getUserId());
+					insert.setString(2, userConnection.getProviderId());
+					insert.setString(3, userConnection.getProviderUserId());
+					insert.setInt(4, userConnection.getRank());
+					insert.setString(5, userConnection.getDisplayName());
+					insert.setString(6, userConnection.getProfileUrl());
+					insert.setString(7, userConnection.getImageUrl());
+					insert.setString(8, userConnection.getAccessToken());
+					insert.setString(9, userConnection.getSecret());
+					insert.setString(10, userConnection.getRefreshToken());
+					insert.setObject(11, userConnection.getExpireTime(),
+							Types.BIGINT);
+					return insert;
+				}
+			}, keyHolder);
+		} catch (DuplicateKeyException e) {
+			if (getUserConnection(userConnection.getUserId(),
+					userConnection.getProviderId(),
+					userConnection.getProviderUserId()) != null) {
+				throw new DuplicateConnectionException(new ConnectionKey(
+						userConnection.getProviderId(),
+						userConnection.getProviderUserId()));
+			}
+			throw e;
+		}
+		userConnection.setId(keyHolder.getKey().longValue());
+		userConnection.setVersion(0);
+	}
+
+	private void updateUserConnection(UserConnection userConnection) {
+		Integer version = userConnection.getVersion();
+		int updated = jdbcTemplate
+				.update("update user_connection set user_id = ?, provider_id = ?, provider_user_id = ?, rank = ?, display_name = ?, profile_url = ?, image_url = ?, access_token = ?, secret = ?, refresh_token = ?, expire_time = ?, version = ?"
+						+ " where id = ? and (version = ? or version is null)",
+						new Object[] { userConnection.getUserId(),
+								userConnection.getProviderId(),
+								userConnection.getProviderUserId(),
+								userConnection.getRank(),
+								userConnection.getDisplayName(),
+								userConnection.getProfileUrl(),
+								userConnection.getImageUrl(),
+								userConnection.getAccessToken(),
+								userConnection.getSecret(),
+								userConnection.getRefreshToken(),
+								userConnection.getExpireTime(),
+								version == null ? 1 : version + 1,
+								userConnection.getId(),
+								version == null ? 0 : version },
+						new int[] { Types.VARCHAR, Types.VARCHAR,
+								Types.VARCHAR, Types.INTEGER, Types.VARCHAR,
+								Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+								Types.VARCHAR, Types.VARCHAR, Types.BIGINT,
+								Types.INTEGER, Types.BIGINT, Types.INTEGER });
+		if (updated == 0) {
+			throw new OptimisticLockingFailureException("UserConnection "
+					+ userConnection.getId()
+					+ " was removed or updated concurrently");
+		}
+		userConnection.setVersion(version == null ? 1 : version + 1);
+	}
+
+	private static final class UserConnectionMapper implements
+			RowMapper<UserConnection> {
+
+		private final UserConnection prototype;
+
+		private UserConnectionMapper(UserConnection prototype) {
+			this.prototype = prototype;
+		}
+
+		public UserConnection mapRow(ResultSet rs, int rowNum)
+				throws SQLException {
+			UserConnection userConnection = prototype.copy();
+			userConnection.setId(rs.getLong("id"));
+			userConnection.setUserId(rs.getString("user_id"));
+			userConnection.setProviderId(rs.getString("provider_id"));
+			userConnection.setProviderUserId(rs.getString("provider_user_id"));
+			userConnection.setRank(rs.getInt("rank"));
+			userConnection.setDisplayName(rs.getString("display_name"));
+			userConnection.setProfileUrl(rs.getString("profile_url"));
+			userConnection.setImageUrl(rs.getString("image_url"));
+			userConnection.setAccessToken(rs.getString("access_token"));
+			userConnection.setSecret(rs.getString("secret"));
+			userConnection.setRefreshToken(rs.getString("refresh_token"));
+			long expireTime = rs.getLong("expire_time");
+			userConnection.setExpireTime(rs.wasNull() ? null : expireTime);
+			int version = rs.getInt("version");
+			userConnection.setVersion(rs.wasNull() ? null : version);
+			return userConnection;
+		}
+
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+/**
+ * Records the progress of a {@link KeyRotationJob}, so that an interrupted
+ * rotation can be resumed without rotating connections twice. Implementations
+ * might store the id in a file or a database table.
+ * 
+ * @author Michael Lavelle
+ */
+public interface KeyRotationCheckpoint {
+
+	/**
+	 * Returns the id up to which every connection has been rotated, or null
+	 * if no connection has been rotated yet.
+	 */
+	Long getRotatedUpToId();
+
+	/**
+	 * Records that every connection with an id up to and including the given
+	 * id has been rotated. Called with increasing ids as chunks complete.
+	 */
+	void setRotatedUpToId(long id);
+
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Re-encrypts the access token, secret and refresh token of every connection
+ * from an old TextEncryptor to a new {@link KeyVersionedTextEncryptor}, when
+ * rotating the key of the TextEncryptor given to RooUsersConnectionRepository.
+ * <p>
+ * Connections are processed in chunks of consecutive ids, read and written
+ * with plain JDBC, each chunk in its own short transaction and written as a
+ * single JDBC batch. Chunks are processed by the given number of workers on
+ * the given Executor, or on the calling thread if no executor is set. Only
+ * the connections existing when the job starts are rotated.
+ * <p>
+ * A {@link KeyRotationCheckpoint} records the id up to which every chunk has
+ * completed, from which an interrupted job resumes. Tokens already prefixed
+ * with the key version of the new encryptor are left unchanged, so
+ * connections written with the new encryptor while the job runs, or rotated
+ * by an earlier run, are not rotated twice. Each rotated connection has its
+ * version incremented; a connection updated concurrently between being read
+ * and written is read again and rotated from its new tokens.
+ * 
+ * @author Michael Lavelle
+ */
+public class KeyRotationJob {
+
+	/**
+	 * Number of times a chunk reads again and rotates connections which were
+	 * updated concurrently, before failing.
+	 */
+	private static final int MAX_CHUNK_ATTEMPTS = 3;
+
+	private static final String SELECT_TOKENS = "select id, access_token, secret, refresh_token, version from user_connection";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final TextEncryptor oldTextEncryptor;
+
+	private final KeyVersionedTextEncryptor newTextEncryptor;
+
+	private final RowMapper<Tokens> tokensMapper = new TokensMapper();
+
+	private int chunkSize = 1000;
+
+	private Executor executor;
+
+	private int workers = 1;
+
+	private KeyRotationCheckpoint checkpoint;
+
+	public KeyRotationJob(DataSource dataSource,
+			TextEncryptor oldTextEncryptor,
+			KeyVersionedTextEncryptor newTextEncryptor) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource));
+		this.oldTextEncryptor = oldTextEncryptor;
+		this.newTextEncryptor = newTextEncryptor;
+	}
+
+	/**
+	 * Number of consecutive ids processed per transaction. Defaults to 1000.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException(
+					"chunkSize must be greater than zero");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Executor running the workers. Defaults to null, processing every chunk
+	 * on the calling thread.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Number of chunks processed concurrently when an executor is set. Each
+	 * worker holds a database connection while processing a chunk. Defaults
+	 * to 1.
+	 */
+	public void setWorkers(int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException(
+					"workers must be greater than zero");
+		}
+		this.workers = workers;
+	}
+
+	/**
+	 * Checkpoint to resume from and record progress to. Defaults to null,
+	 * starting from the first connection.
+	 */
+	public void setCheckpoint(KeyRotationCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Rotates every connection after the checkpoint, returning once all
+	 * chunks have completed.
+	 * 
+	 * @throws RuntimeException
+	 *             the first failure of any chunk, after the chunks already
+	 *             being processed have completed
+	 */
+	public KeyRotationResult run() {
+		long startTime = System.currentTimeMillis();
+		Map<String, Object> ids = jdbcTemplate
+				.queryForMap("select min(id) as min_id, max(id) as max_id from user_connection");
+		Number minId = (Number) ids.get("min_id");
+		Number maxId = (Number) ids.get("max_id");
+		Long rotatedUpToId = checkpoint == null ? null : checkpoint
+				.getRotatedUpToId();
+		if (maxId == null
+				|| (rotatedUpToId != null && rotatedUpToId >= maxId
+						.longValue())) {
+			return new KeyRotationResult(0, 0, 0, System.currentTimeMillis()
+					- startTime);
+		}
+		long firstId = rotatedUpToId == null ? minId.longValue() : Math.max(
+				rotatedUpToId + 1, minId.longValue());
+		final Progress progress = new Progress(firstId, maxId.longValue());
+
+		int workerCount = executor == null ? 1 : workers;
+		final CountDownLatch finished = new CountDownLatch(workerCount);
+		Runnable worker = new Runnable() {
+			public void run() {
+				try {
+					processChunks(progress);
+				} finally {
+					finished.countDown();
+				}
+			}
+		};
+		if (executor == null) {
+			worker.run();
+		} else {
+			for (int i = 0; i < workerCount; i++) {
+				executor.execute(worker);
+			}
+		}
+		try {
+			finished.await();
+		} catch (InterruptedException e) {
+			progress.fail(e);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while waiting for key rotation", e);
+		}
+		return progress.getResult(System.currentTimeMillis() - startTime);
+	}
+
+	private void processChunks(Progress progress) {
+		long chunk;
+		while ((chunk = progress.nextChunk()) >= 0) {
+			try {
+				long[] counts = rotateChunk(progress.getFirstId(chunk),
+						progress.getLastId(chunk));
+				progress.complete(chunk, counts[0], counts[1]);
+			} catch (RuntimeException e) {
+				progress.fail(e);
+			} catch (Error e) {
+				progress.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Rotates the connections with ids in the given range in a single
+	 * transaction.
+	 * 
+	 * @return the number of connections rotated and skipped
+	 */
+	private long[] rotateChunk(final long firstId, final long lastId) {
+		return transactionTemplate.execute(new TransactionCallback<long[]>() {
+			public long[] doInTransaction(TransactionStatus status) {
+				List<Tokens> tokens = jdbcTemplate.query(SELECT_TOKENS
+						+ " where id between ? and ?", tokensMapper, firstId,
+						lastId);
+				long rotated = 0;
+				long skipped = 0;
+				for (int attempt = 1; !tokens.isEmpty(); attempt++) {
+					List<Tokens> rotatedTokens = new ArrayList<Tokens>(tokens
+							.size());
+					for (Tokens connectionTokens : tokens) {
+						if (rotate(connectionTokens)) {
+							rotatedTokens.add(connectionTokens);
+						} else {
+							skipped++;
+						}
+					}
+					List<Tokens> conflicts = update(rotatedTokens);
+					rotated += rotatedTokens.size() - conflicts.size();
+					if (!conflicts.isEmpty() && attempt == MAX_CHUNK_ATTEMPTS) {
+						throw new OptimisticLockingFailureException(
+								"Connections with ids between " + firstId
+										+ " and " + lastId
+										+ " were repeatedly updated concurrently");
+					}
+					tokens = reload(conflicts);
+				}
+				return new long[] { rotated, skipped };
+			}
+		});
+	}
+
+	/**
+	 * Re-encrypts the connection's tokens, returning false if they are
+	 * already encrypted with the key version of the new encryptor.
+	 */
+	private boolean rotate(Tokens tokens) {
+		if (isEncryptedWithNewKey(tokens.accessToken)
+				&& isEncryptedWithNewKey(tokens.secret)
+				&& isEncryptedWithNewKey(tokens.refreshToken)) {
+			return false;
+		}
+		tokens.accessToken = rotate(tokens.accessToken);
+		tokens.secret = rotate(tokens.secret);
+		tokens.refreshToken = rotate(tokens.refreshToken);
+		return true;
+	}
+
+	private String rotate(String encryptedText) {
+		return isEncryptedWithNewKey(encryptedText) ? encryptedText
+				: newTextEncryptor.encrypt(oldTextEncryptor
+						.decrypt(encryptedText));
+	}
+
+	private boolean isEncryptedWithNewKey(String encryptedText) {
+		return encryptedText == null
+				|| newTextEncryptor.isEncryptedWithKeyVersion(encryptedText);
+	}
+
+	/**
+	 * Writes the rotated tokens as a single batch, returning the connections
+	 * which were not updated as their version has changed.
+	 */
+	private List<Tokens> update(final List<Tokens> rotatedTokens) {
+		if (rotatedTokens.isEmpty()) {
+			return rotatedTokens;
+		}
+		int[] updateCounts = jdbcTemplate
+				.batchUpdate(
+						"update user_connection set access_token = ?, secret = ?, refresh_token = ?, version = coalesce(version, 0) + 1"
+								+ " where id = ? and (version = ? or version is null)",
+						new BatchPreparedStatementSetter() {
+							public void setValues(PreparedStatement update,
+									int i) throws SQLException {
+								Tokens tokens = rotatedTokens.get(i);
+								update.setString(1, tokens.accessToken);
+								update.setString(2, tokens.secret);
+								update.setString(3, tokens.refreshToken);
+								update.setLong(4, tokens.id);
+								update.setObject(5,
+										tokens.version == null ? 0
+												: tokens.version,
+										Types.INTEGER);
+							}
+
+							public int getBatchSize() {
+								return rotatedTokens.size();
+							}
+						});
+		List<Tokens> conflicts = new ArrayList<Tokens>(0);
+		for (int i = 0; i < updateCounts.length; i++) {
+			// Drivers reporting Statement.SUCCESS_NO_INFO cannot report
+			// conflicts, so such updates are taken to have succeeded
+			if (updateCounts[i] == 0) {
+				conflicts.add(rotatedTokens.get(i));
+			}
+		}
+		return conflicts;
+	}
+
+	/**
+	 * Reads the current tokens of the given connections, omitting those which
+	 * have been removed.
+	 */
+	private List<Tokens> reload(List<Tokens> conflicts) {
+		List<Tokens> tokens = new ArrayList<Tokens>(conflicts.size());
+		for (Tokens conflict : conflicts) {
+			tokens.addAll(jdbcTemplate.query(SELECT_TOKENS + " where id = ?",
+					tokensMapper, conflict.id));
+		}
+		return tokens;
+	}
+
+	/**
+	 * Hands out chunks to workers, and tracks the chunks completed so that
+	 * the checkpoint only advances past chunks which have all completed.
+	 */
+	private final class Progress {
+
+		private final long firstId;
+
+		private final long maxId;
+
+		private final long chunkCount;
+
+		private final SortedMap<Long, Boolean> completedChunks = new TreeMap<Long, Boolean>();
+
+		private long nextChunk;
+
+		private long checkpointedChunks;
+
+		private long rotatedCount;
+
+		private long skippedCount;
+
+		private Throwable failure;
+
+		public Progress(long firstId, long maxId) {
+			this.firstId = firstId;
+			this.maxId = maxId;
+			this.chunkCount = (maxId - firstId) / chunkSize + 1;
+		}
+
+		public long getFirstId(long chunk) {
+			return firstId + chunk * chunkSize;
+		}
+
+		public long getLastId(long chunk) {
+			return Math.min(getFirstId(chunk) + chunkSize - 1, maxId);
+		}
+
+		/**
+		 * Returns the next chunk to process, or -1 if all chunks have been
+		 * handed out or a chunk has failed.
+		 */
+		public synchronized long nextChunk() {
+			if (failure != null || nextChunk == chunkCount) {
+				return -1;
+			}
+			return nextChunk++;
+		}
+
+		public synchronized void complete(long chunk, long rotated,
+				long skipped) {
+			rotatedCount += rotated;
+			skippedCount += skipped;
+			completedChunks.put(chunk, Boolean.TRUE);
+			long lastCheckpointedChunk = -1;
+			while (!completedChunks.isEmpty()
+					&& completedChunks.firstKey() == checkpointedChunks) {
+				completedChunks.remove(checkpointedChunks);
+				lastCheckpointedChunk = checkpointedChunks++;
+			}
+			if (checkpoint != null && lastCheckpointedChunk >= 0) {
+				checkpoint.setRotatedUpToId(getLastId(lastCheckpointedChunk));
+			}
+		}
+
+		public synchronized void fail(Throwable failure) {
+			if (this.failure == null) {
+				this.failure = failure;
+			}
+		}
+
+		public synchronized KeyRotationResult getResult(long elapsedMillis) {
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			return new KeyRotationResult(rotatedCount, skippedCount,
+					checkpointedChunks, elapsedMillis);
+		}
+
+	}
+
+	private static final class Tokens {
+
+		private long id;
+
+		private String accessToken;
+
+		private String secret;
+
+		private String refreshToken;
+
+		private Integer version;
+
+	}
+
+	private static final class TokensMapper implements RowMapper<Tokens> {
+
+		public Tokens mapRow(ResultSet rs, int rowNum) throws SQLException {
+			Tokens tokens = new Tokens();
+			tokens.id = rs.getLong("id");
+			tokens.accessToken = rs.getString("access_token");
+			tokens.secret = rs.getString("secret");
+			tokens.refreshToken = rs.getString("refresh_token");
+			int version = rs.getInt("version");
+			tokens.version = rs.wasNull() ? null : version;
+			return tokens;
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+/**
+ * Outcome of a {@link KeyRotationJob} run.
+ * 
+ * @author Michael Lavelle
+ */
+public class KeyRotationResult {
+
+	private final long rotatedCount;
+
+	private final long skippedCount;
+
+	private final long chunkCount;
+
+	private final long elapsedMillis;
+
+	public KeyRotationResult(long rotatedCount, long skippedCount,
+			long chunkCount, long elapsedMillis) {
+		this.rotatedCount = rotatedCount;
+		this.skippedCount = skippedCount;
+		this.chunkCount = chunkCount;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Number of connections whose tokens were re-encrypted.
+	 */
+	public long getRotatedCount() {
+		return rotatedCount;
+	}
+
+	/**
+	 * Number of connections left unchanged, as their tokens were already
+	 * encrypted with the new encryptor.
+	 */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * Number of id ranges processed.
+	 */
+	public long getChunkCount() {
+		return chunkCount;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Connections rotated or skipped per second.
+	 */
+	public double getConnectionsPerSecond() {
+		return elapsedMillis == 0 ? 0 : (rotatedCount + skippedCount) * 1000d
+				/ elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "KeyRotationResult [rotatedCount=" + rotatedCount
+				+ ", skippedCount=" + skippedCount + ", chunkCount="
+				+ chunkCount + ", elapsedMillis=" + elapsedMillis
+				+ ", connectionsPerSecond=" + getConnectionsPerSecond() + "]";
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * TextEncryptor decorator prefixing each encrypted text with the version of
+ * the key it was encrypted with, as "{keyVersion}", so that the key of a
+ * stored token is known without attempting to decrypt it.
+ * <p>
+ * Texts without the prefix of this key version, such as tokens stored before
+ * a key rotation, are decrypted with the previous TextEncryptor if one is
+ * set. Given to RooUsersConnectionRepository while a {@link KeyRotationJob}
+ * runs, connections can be read whichever key their tokens are encrypted
+ * with.
+ *
+ * @author Michael Lavelle
+ */
+public class KeyVersionedTextEncryptor implements TextEncryptor {
+
+	private final String prefix;
+
+	private final TextEncryptor textEncryptor;
+
+	private TextEncryptor previousTextEncryptor;
+
+	public KeyVersionedTextEncryptor(String keyVersion,
+			TextEncryptor textEncryptor) {
+		if (keyVersion == null || keyVersion.length() == 0
+				|| keyVersion.indexOf('{') >= 0 || keyVersion.indexOf('}') >= 0) {
+			throw new IllegalArgumentException(
+					"keyVersion must be a non-empty string without braces");
+		}
+		this.prefix = "{" + keyVersion + "}";
+		this.textEncryptor = textEncryptor;
+	}
+
+	/**
+	 * TextEncryptor decrypting texts not encrypted with this key version.
+	 * Defaults to null, failing to decrypt such texts.
+	 */
+	public void setPreviousTextEncryptor(TextEncryptor previousTextEncryptor) {
+		this.previousTextEncryptor = previousTextEncryptor;
+	}
+
+	/**
+	 * Returns true if the given text was encrypted with this key version.
+	 */
+	public boolean isEncryptedWithKeyVersion(String encryptedText) {
+		return encryptedText.startsWith(prefix);
+	}
+
+	public String encrypt(String text) {
+		return prefix + textEncryptor.encrypt(text);
+	}
+
+	public String decrypt(String encryptedText) {
+		if (isEncryptedWithKeyVersion(encryptedText)) {
+			return textEncryptor.decrypt(encryptedText.substring(prefix
+					.length()));
+		}
+		if (previousTextEncryptor == null) {
+			throw new IllegalArgumentException(
+					"Text is not encrypted with key version "
+							+ prefix.substring(1, prefix.length() - 1));
+		}
+		return previousTextEncryptor.decrypt(encryptedText);
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * ConnectionData holding encrypted tokens, each of which is decrypted the
+ * first time it is read. Serializes as a plain ConnectionData with decrypted
+ * tokens.
+ *
+ * @author Michael Lavelle
+ */
+class LazyDecryptingConnectionData extends ConnectionData {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient TextEncryptor textEncryptor;
+
+	private transient String accessToken;
+
+	private transient String secret;
+
+	private transient String refreshToken;
+
+	private transient boolean accessTokenDecrypted;
+
+	private transient boolean secretDecrypted;
+
+	private transient boolean refreshTokenDecrypted;
+
+	public LazyDecryptingConnectionData(UserConnection userConnection,
+			TextEncryptor textEncryptor) {
+		super(userConnection.getProviderId(), userConnection
+				.getProviderUserId(), userConnection.getDisplayName(),
+				userConnection.getProfileUrl(), userConnection.getImageUrl(),
+				null, null, null, userConnection.getExpireTime());
+		this.textEncryptor = textEncryptor;
+		this.accessToken = userConnection.getAccessToken();
+		this.secret = userConnection.getSecret();
+		this.refreshToken = userConnection.getRefreshToken();
+	}
+
+	@Override
+	public synchronized String getAccessToken() {
+		if (!accessTokenDecrypted) {
+			accessToken = decrypt(accessToken);
+			accessTokenDecrypted = true;
+		}
+		return accessToken;
+	}
+
+	@Override
+	public synchronized String getSecret() {
+		if (!secretDecrypted) {
+			secret = decrypt(secret);
+			secretDecrypted = true;
+		}
+		return secret;
+	}
+
+	@Override
+	public synchronized String getRefreshToken() {
+		if (!refreshTokenDecrypted) {
+			refreshToken = decrypt(refreshToken);
+			refreshTokenDecrypted = true;
+		}
+		return refreshToken;
+	}
+
+	private String decrypt(String encryptedText) {
+		return encryptedText != null ? textEncryptor.decrypt(encryptedText)
+				: encryptedText;
+	}
+
+	private Object writeReplace() {
+		return new ConnectionData(getProviderId(), getProviderUserId(),
+				getDisplayName(), getProfileUrl(), getImageUrl(),
+				getAccessToken(), getSecret(), getRefreshToken(),
+				getExpireTime());
+	}
+
+}
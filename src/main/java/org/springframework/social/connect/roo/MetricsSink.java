@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+/**
+ * Receives the timings recorded by the instrumented RooTemplate,
+ * ConnectionRepository and TextEncryptor decorators, and by
+ * RooUsersConnectionRepository when given a MetricsSink.
+ *
+ * @author Michael Lavelle
+ * @see HistogramMetricsSink
+ */
+public interface MetricsSink {
+
+	/**
+	 * Whether operations should currently be timed. Checked before each
+	 * operation, so that a disabled sink costs no more than this call.
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Records a single operation.
+	 * 
+	 * @param operation
+	 *            the operation name, eg. "RooTemplate.getAllUserConnections"
+	 * @param elapsedNanos
+	 *            time taken by the operation in nanoseconds
+	 * @param rows
+	 *            number of rows or connections returned or affected, or -1
+	 *            if not applicable
+	 * @param failed
+	 *            whether the operation threw an exception
+	 */
+	void record(String operation, long elapsedNanos, int rows, boolean failed);
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe counts and latency histogram of a single operation. The
+ * histogram has a bucket for each power of two microseconds, keeping memory
+ * constant and recording lock-free at the cost of percentile precision.
+ *
+ * @author Michael Lavelle
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+	private static final int BUCKET_COUNT = 64;
+
+	private final String operation;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private final AtomicLong rowCount = new AtomicLong();
+
+	private final AtomicLong totalTimeMicros = new AtomicLong();
+
+	private final AtomicLong maxTimeMicros = new AtomicLong();
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	public OperationMetrics(String operation) {
+		this.operation = operation;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public void record(long elapsedNanos, int rows, boolean failed) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(elapsedNanos, 0));
+		count.incrementAndGet();
+		if (failed) {
+			failureCount.incrementAndGet();
+		}
+		if (rows > 0) {
+			rowCount.addAndGet(rows);
+		}
+		totalTimeMicros.addAndGet(micros);
+		long max = maxTimeMicros.get();
+		while (micros > max && !maxTimeMicros.compareAndSet(max, micros)) {
+			max = maxTimeMicros.get();
+		}
+		buckets.incrementAndGet(bucketIndex(micros));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	public long getTotalTimeMicros() {
+		return totalTimeMicros.get();
+	}
+
+	public long getMaxTimeMicros() {
+		return maxTimeMicros.get();
+	}
+
+	public double getMeanTimeMicros() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getTotalTimeMicros() / count;
+	}
+
+	public long getMedianTimeMicros() {
+		return getPercentileTimeMicros(0.5);
+	}
+
+	public long get95thPercentileTimeMicros() {
+		return getPercentileTimeMicros(0.95);
+	}
+
+	public long get99thPercentileTimeMicros() {
+		return getPercentileTimeMicros(0.99);
+	}
+
+	/**
+	 * Returns the upper bound of the histogram bucket holding the given
+	 * percentile, capped at the maximum time recorded.
+	 * 
+	 * @param percentile
+	 *            between 0 and 1
+	 */
+	public long getPercentileTimeMicros(double percentile) {
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long cumulative = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			cumulative += counts[i];
+			if (cumulative >= rank && counts[i] > 0) {
+				return Math.min(bucketUpperBound(i), getMaxTimeMicros());
+			}
+		}
+		return getMaxTimeMicros();
+	}
+
+	/**
+	 * Clears all counts. Operations recorded concurrently may be partially
+	 * cleared.
+	 */
+	public void reset() {
+		count.set(0);
+		failureCount.set(0);
+		rowCount.set(0);
+		totalTimeMicros.set(0);
+		maxTimeMicros.set(0);
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+	}
+
+	private static int bucketIndex(long micros) {
+		return Math.min(64 - Long.numberOfLeadingZeros(micros),
+				BUCKET_COUNT - 1);
+	}
+
+	private static long bucketUpperBound(int bucketIndex) {
+		return bucketIndex == 0 ? 0 : (1L << bucketIndex) - 1;
+	}
+
+}
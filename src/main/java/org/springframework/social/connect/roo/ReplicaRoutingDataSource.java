@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * DataSource routing connections to a primary database, or to one of its read
+ * replicas, in turn, while a {@link ReplicaRoutingRooTemplate} on the same
+ * thread is making a read which may be served by a replica. Configure the
+ * RooTemplate, or the EntityManagerFactory of the rooUserConnectionTemplate,
+ * with this DataSource, and wrap the RooTemplate in a ReplicaRoutingRooTemplate.
+ *
+ * Connections are routed when obtained, so a transaction keeps the connection
+ * it began with: reads made within a transaction started elsewhere always go
+ * to the database the transaction began on.
+ *
+ * @author Michael Lavelle
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+	private static final String PRIMARY = "primary";
+
+	private static final ThreadLocal<Boolean> replicaRead = new ThreadLocal<Boolean>();
+
+	private final int replicaCount;
+
+	private final AtomicInteger nextReplica = new AtomicInteger();
+
+	/**
+	 * @param primary
+	 *            the database all writes are made to
+	 * @param replicas
+	 *            the replicas of the primary database to spread reads over,
+	 *            if empty all connections are obtained from the primary
+	 */
+	public ReplicaRoutingDataSource(DataSource primary,
+			List<DataSource> replicas) {
+		if (primary == null) {
+			throw new IllegalArgumentException("primary cannot be null");
+		}
+		Map<Object, Object> targetDataSources = new HashMap<Object, Object>();
+		targetDataSources.put(PRIMARY, primary);
+		for (int i = 0; i < replicas.size(); i++) {
+			targetDataSources.put(i, replicas.get(i));
+		}
+		this.replicaCount = replicas.size();
+		setTargetDataSources(targetDataSources);
+		setDefaultTargetDataSource(primary);
+		afterPropertiesSet();
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+		if (replicaCount == 0 || replicaRead.get() == null) {
+			return PRIMARY;
+		}
+		return (nextReplica.getAndIncrement() & Integer.MAX_VALUE)
+				% replicaCount;
+	}
+
+	/**
+	 * Routes connections subsequently obtained by the current thread to the
+	 * replicas, until {@link #endReplicaRead()} is called.
+	 */
+	void beginReplicaRead() {
+		replicaRead.set(Boolean.TRUE);
+	}
+
+	void endReplicaRead() {
+		replicaRead.remove();
+	}
+
+}
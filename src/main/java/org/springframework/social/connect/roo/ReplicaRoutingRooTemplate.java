@@ -0,0 +1,430 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * RooTemplate decorator sending reads to the read replicas of a
+ * {@link ReplicaRoutingDataSource}, and writes, rank allocation and anything
+ * run within a transaction to the primary database. The decorated template
+ * must obtain its connections from the ReplicaRoutingDataSource.
+ *
+ * As replicas lag behind the primary, reads of a user's connections are sent
+ * to the primary for a read-your-writes window after each write made to that
+ * user's connections through this template, as are lookups of the users
+ * connected to a provider user after a write naming that provider user.
+ * Writes are tracked per template instance, so the window does not cover
+ * writes made through other templates or processes.
+ *
+ * At most maximumRecentWrites users and provider users are tracked. Once
+ * more have been written within the window, as by a bulk addUserConnections
+ * or createUserConnections, the least recently written are evicted, ending
+ * their window early: their reads go to a replica again, which may not yet
+ * have their writes. Size maximumRecentWrites above the number of users and
+ * provider users written within a window.
+ *
+ * @author Michael Lavelle
+ */
+public class ReplicaRoutingRooTemplate implements RooTemplate {
+
+	/**
+	 * Default maximum number of users and provider users whose recent writes
+	 * are tracked.
+	 */
+	public static final int DEFAULT_MAXIMUM_RECENT_WRITES = 100000;
+
+	private final RooTemplate rooTemplate;
+
+	private final ReplicaRoutingDataSource dataSource;
+
+	private final long readYourWritesWindowMillis;
+
+	private final BoundedCache<Object, Boolean> recentWrites;
+
+	/**
+	 * @param rooTemplate
+	 *            the template to delegate to, obtaining its connections from
+	 *            the given data source
+	 * @param dataSource
+	 *            the data source to route the delegate's connections with
+	 * @param readYourWritesWindowMillis
+	 *            time in milliseconds after a write, or after the
+	 *            transaction it was made in completes, during which reads of
+	 *            the connections written are sent to the primary. This should
+	 *            exceed the replication lag. Zero or less sends every read
+	 *            made outside a transaction to a replica.
+	 */
+	public ReplicaRoutingRooTemplate(RooTemplate rooTemplate,
+			ReplicaRoutingDataSource dataSource, long readYourWritesWindowMillis) {
+		this(rooTemplate, dataSource, readYourWritesWindowMillis,
+				DEFAULT_MAXIMUM_RECENT_WRITES);
+	}
+
+	/**
+	 * @param rooTemplate
+	 *            the template to delegate to, obtaining its connections from
+	 *            the given data source
+	 * @param dataSource
+	 *            the data source to route the delegate's connections with
+	 * @param readYourWritesWindowMillis
+	 *            time in milliseconds after a write during which reads of
+	 *            the connections written are sent to the primary
+	 * @param maximumRecentWrites
+	 *            the maximum number of users and provider users whose recent
+	 *            writes are tracked. Writes beyond this evict the least
+	 *            recently written, ending their window early.
+	 */
+	public ReplicaRoutingRooTemplate(RooTemplate rooTemplate,
+			ReplicaRoutingDataSource dataSource,
+			long readYourWritesWindowMillis, int maximumRecentWrites) {
+		this.rooTemplate = rooTemplate;
+		this.dataSource = dataSource;
+		this.readYourWritesWindowMillis = readYourWritesWindowMillis;
+		this.recentWrites = new BoundedCache<Object, Boolean>(
+				maximumRecentWrites, readYourWritesWindowMillis);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(userId));
+		try {
+			return rooTemplate.getAllUserConnections(userId);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds) {
+		boolean replicaRead = beginReplicaRead(userIds);
+		try {
+			return rooTemplate.getAllUserConnections(userIds);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			String providerId) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(userId));
+		try {
+			return rooTemplate.getAllUserConnections(userId, providerId);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			MultiValueMap<String, String> providerUsers) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(userId));
+		try {
+			return rooTemplate.getAllUserConnections(userId, providerUsers);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public UserConnection getUserConnection(String userId, String providerId,
+			String providerUserId) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(userId));
+		try {
+			return rooTemplate.getUserConnection(userId, providerId,
+					providerUserId);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getPrimaryUserConnections(String userId,
+			String providerId) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(userId));
+		try {
+			return rooTemplate.getPrimaryUserConnections(userId, providerId);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(userId));
+		try {
+			return rooTemplate.getPrimaryUserConnection(userId, providerId);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnections(String providerId,
+			String providerUserId) {
+		boolean replicaRead = beginReplicaRead(Collections
+				.singletonList(providerUserKey(providerId, providerUserId)));
+		try {
+			return rooTemplate.getUserConnections(providerId, providerUserId);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public Set<String> findUsersConnectedTo(String providerId,
+			Set<String> providerUserIds) {
+		List<Object> providerUserKeys = new ArrayList<Object>(
+				providerUserIds.size());
+		for (String providerUserId : providerUserIds) {
+			providerUserKeys.add(providerUserKey(providerId, providerUserId));
+		}
+		boolean replicaRead = beginReplicaRead(providerUserKeys);
+		try {
+			return rooTemplate.findUsersConnectedTo(providerId,
+					providerUserIds);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsAfter(Long afterId,
+			int maxResults) {
+		boolean replicaRead = beginReplicaRead(Collections.emptyList());
+		try {
+			return rooTemplate.getUserConnectionsAfter(afterId, maxResults);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	@Override
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			String providerId, long expireTime, UserConnection after,
+			int maxResults) {
+		boolean replicaRead = beginReplicaRead(Collections.emptyList());
+		try {
+			return rooTemplate.getUserConnectionsExpiringBefore(providerId,
+					expireTime, after, maxResults);
+		} finally {
+			endReplicaRead(replicaRead);
+		}
+	}
+
+	/**
+	 * Always read from the primary, as ranks are allocated from it for
+	 * writes.
+	 */
+	@Override
+	public int getRank(String userId, String providerId) {
+		return rooTemplate.getRank(userId, providerId);
+	}
+
+	@Override
+	public UserConnection saveUserConnection(UserConnection userConnection) {
+		try {
+			return rooTemplate.saveUserConnection(userConnection);
+		} finally {
+			recordWrite(userConnection.getUserId(),
+					userConnection.getProviderId(),
+					userConnection.getProviderUserId());
+		}
+	}
+
+	@Override
+	public UserConnection createUserConnection(String userId,
+			String providerId, String providerUserId, int rank,
+			String displayName, String profileUrl, String imageUrl,
+			String accessToken, String secret, String refreshToken,
+			Long expireTime) {
+		try {
+			return rooTemplate.createUserConnection(userId, providerId,
+					providerUserId, rank, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime);
+		} finally {
+			recordWrite(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime) {
+		try {
+			rooTemplate.addUserConnection(userId, providerId, providerUserId,
+					displayName, profileUrl, imageUrl, accessToken, secret,
+					refreshToken, expireTime);
+		} finally {
+			recordWrite(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public void addUserConnections(List<UserConnection> userConnections) {
+		try {
+			rooTemplate.addUserConnections(userConnections);
+		} finally {
+			recordWrites(userConnections);
+		}
+	}
+
+	@Override
+	public void createUserConnections(List<UserConnection> userConnections) {
+		try {
+			rooTemplate.createUserConnections(userConnections);
+		} finally {
+			recordWrites(userConnections);
+		}
+	}
+
+	@Override
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version) {
+		try {
+			return rooTemplate.updateUserConnection(userId, providerId,
+					providerUserId, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime, version);
+		} finally {
+			recordWrite(userId, providerId, providerUserId);
+		}
+	}
+
+	@Override
+	public int removeUserConnection(String userId, String providerId,
+			String providerUserId) {
+		try {
+			return rooTemplate.removeUserConnection(userId, providerId,
+					providerUserId);
+		} finally {
+			recordWrite(userId, providerId, providerUserId);
+		}
+	}
+
+	/**
+	 * Reads the connections to be removed from the primary first, so that the
+	 * read-your-writes window of each of their provider users is started.
+	 */
+	@Override
+	public int removeUserConnections(String userId, String providerId) {
+		List<UserConnection> removedConnections = readYourWritesWindowMillis > 0 ? rooTemplate
+				.getAllUserConnections(userId, providerId) : Collections
+				.<UserConnection> emptyList();
+		try {
+			return rooTemplate.removeUserConnections(userId, providerId);
+		} finally {
+			recordWrite(userId, providerId, null);
+			recordWrites(removedConnections);
+		}
+	}
+
+	/**
+	 * Routes the current thread's connections to a replica if no transaction
+	 * is active and none of the given users or provider users were written
+	 * within the read-your-writes window.
+	 * 
+	 * @param keys
+	 *            user ids and provider user keys
+	 * @return whether reads were routed to a replica
+	 */
+	private boolean beginReplicaRead(Collection<?> keys) {
+		if (TransactionSynchronizationManager.isActualTransactionActive()) {
+			return false;
+		}
+		if (readYourWritesWindowMillis > 0) {
+			for (Object key : keys) {
+				if (recentWrites.get(key) != null) {
+					return false;
+				}
+			}
+		}
+		dataSource.beginReplicaRead();
+		return true;
+	}
+
+	private void endReplicaRead(boolean replicaRead) {
+		if (replicaRead) {
+			dataSource.endReplicaRead();
+		}
+	}
+
+	private void recordWrites(List<UserConnection> userConnections) {
+		for (UserConnection userConnection : userConnections) {
+			recordWrite(userConnection.getUserId(),
+					userConnection.getProviderId(),
+					userConnection.getProviderUserId());
+		}
+	}
+
+	/**
+	 * Starts the read-your-writes window of the given user, and of the given
+	 * provider user if not null, both immediately and again once any
+	 * surrounding transaction completes.
+	 */
+	private void recordWrite(final String userId, final String providerId,
+			final String providerUserId) {
+		if (readYourWritesWindowMillis <= 0) {
+			return;
+		}
+		markWritten(userId, providerId, providerUserId);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			// The window should start once the write is visible to replicas
+			TransactionSynchronizationManager
+					.registerSynchronization(new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCompletion(int status) {
+							markWritten(userId, providerId, providerUserId);
+						}
+					});
+		}
+	}
+
+	private void markWritten(String userId, String providerId,
+			String providerUserId) {
+		recentWrites.put(userId, Boolean.TRUE);
+		if (providerUserId != null) {
+			recentWrites.put(providerUserKey(providerId, providerUserId),
+					Boolean.TRUE);
+		}
+	}
+
+	private static Object providerUserKey(String providerId,
+			String providerUserId) {
+		return Arrays.asList(providerId, providerUserId);
+	}
+
+}
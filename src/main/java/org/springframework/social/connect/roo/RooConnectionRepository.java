@@ -17,10 +17,12 @@ package org.springframework.social.connect.roo;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionData;
@@ -33,12 +35,15 @@ import org.springframework.social.connect.NotConnectedException;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.ObjectUtils;
 
 /**
  * @author Michael Lavelle
  */
 class RooConnectionRepository implements ConnectionRepository {
 
+	private static final String CREATE_CONNECTION = "ConnectionFactory.createConnection";
+
 	private final String userId;
 
 	private final RooTemplate rooTemplate;
@@ -47,23 +52,45 @@ class RooConnectionRepository implements ConnectionRepository {
 
 	private final TextEncryptor textEncryptor;
 
+	private final Instrumentation instrumentation;
+
+	private final ConnectionCache connectionCache;
+
 	public RooConnectionRepository(String userId, RooTemplate rooTemplate,
 			ConnectionFactoryLocator connectionFactoryLocator,
 			TextEncryptor textEncryptor) {
+		this(userId, rooTemplate, connectionFactoryLocator, textEncryptor,
+				Instrumentation.DISABLED, null);
+	}
+
+	/**
+	 * Creates a repository timing the creation of each Connection with the
+	 * given instrumentation, as operation "ConnectionFactory.createConnection",
+	 * and reusing Connection instances held by the given cache, if not null.
+	 */
+	RooConnectionRepository(String userId, RooTemplate rooTemplate,
+			ConnectionFactoryLocator connectionFactoryLocator,
+			TextEncryptor textEncryptor, Instrumentation instrumentation,
+			ConnectionCache connectionCache) {
 		this.userId = userId;
 		this.rooTemplate = rooTemplate;
 		this.connectionFactoryLocator = connectionFactoryLocator;
 		this.textEncryptor = textEncryptor;
+		this.instrumentation = instrumentation;
+		this.connectionCache = connectionCache;
 	}
 
 	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return mapAllConnections(rooTemplate.getAllUserConnections(userId));
+	}
 
-		List<Connection<?>> resultList = new ArrayList<Connection<?>>();
-		for (UserConnection userConnection : rooTemplate
-				.getAllUserConnections(userId)) {
-			resultList.add(connectionMapper.mapConnection(userConnection));
-		}
-
+	/**
+	 * Maps the given connections of this user to Connection instances grouped
+	 * by provider id, as returned by {@link #findAllConnections()}, with an
+	 * empty list for each registered provider the user is not connected to.
+	 */
+	MultiValueMap<String, Connection<?>> mapAllConnections(
+			List<UserConnection> userConnections) {
 		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
 		Set<String> registeredProviderIds = connectionFactoryLocator
 				.registeredProviderIds();
@@ -71,24 +98,42 @@ class RooConnectionRepository implements ConnectionRepository {
 			connections.put(registeredProviderId,
 					Collections.<Connection<?>> emptyList());
 		}
-		for (Connection<?> connection : resultList) {
+		for (UserConnection userConnection : userConnections) {
+			Connection<?> connection = connectionMapper
+					.mapConnection(userConnection);
 			String providerId = connection.getKey().getProviderId();
-			if (connections.get(providerId).size() == 0) {
-				connections.put(providerId, new LinkedList<Connection<?>>());
+			List<Connection<?>> providerConnections = connections
+					.get(providerId);
+			if (providerConnections.isEmpty()) {
+				providerConnections = new ArrayList<Connection<?>>();
+				connections.put(providerId, providerConnections);
 			}
-			connections.add(providerId, connection);
+			providerConnections.add(connection);
 		}
 		return connections;
 	}
 
-	public List<Connection<?>> findConnections(String providerId) {
-		List<Connection<?>> connections = new ArrayList<Connection<?>>();
-		for (UserConnection userConnection : rooTemplate.getAllUserConnections(
-				userId, providerId)) {
-			connections.add(connectionMapper.mapConnection(userConnection));
+	/**
+	 * Returns the data of all of this user's connections, grouped by provider
+	 * id, without creating Connection instances. Tokens are decrypted only
+	 * when first read from the returned ConnectionData, so reads which only
+	 * need connection metadata such as display names and image urls avoid
+	 * token decryption altogether.
+	 */
+	public MultiValueMap<String, ConnectionData> findAllConnectionData() {
+		MultiValueMap<String, ConnectionData> connectionData = new LinkedMultiValueMap<String, ConnectionData>();
+		for (UserConnection userConnection : rooTemplate
+				.getAllUserConnections(userId)) {
+			connectionData.add(userConnection.getProviderId(),
+					new LazyDecryptingConnectionData(userConnection,
+							textEncryptor));
 		}
+		return connectionData;
+	}
 
-		return connections;
+	public List<Connection<?>> findConnections(String providerId) {
+		return connectionMapper.mapConnections(rooTemplate
+				.getAllUserConnections(userId, providerId));
 	}
 
 	@SuppressWarnings("unchecked")
@@ -108,25 +153,56 @@ class RooConnectionRepository implements ConnectionRepository {
 						providerUsers));
 
 		MultiValueMap<String, Connection<?>> connectionsForUsers = new LinkedMultiValueMap<String, Connection<?>>();
+		Map<String, Map<String, List<Integer>>> connectionIndexesByProvider = new HashMap<String, Map<String, List<Integer>>>();
 		for (Connection<?> connection : resultList) {
 			String providerId = connection.getKey().getProviderId();
-			List<String> userIds = providerUsers.get(providerId);
 			List<Connection<?>> connections = connectionsForUsers
 					.get(providerId);
+			Map<String, List<Integer>> connectionIndexes = connectionIndexesByProvider
+					.get(providerId);
 			if (connections == null) {
+				List<String> userIds = providerUsers.get(providerId);
 				connections = new ArrayList<Connection<?>>(userIds.size());
 				for (int i = 0; i < userIds.size(); i++) {
 					connections.add(null);
 				}
 				connectionsForUsers.put(providerId, connections);
+				connectionIndexes = indexPositions(userIds);
+				connectionIndexesByProvider.put(providerId, connectionIndexes);
 			}
 			String providerUserId = connection.getKey().getProviderUserId();
-			int connectionIndex = userIds.indexOf(providerUserId);
-			connections.set(connectionIndex, connection);
+			List<Integer> positions = connectionIndexes.get(providerUserId);
+			if (positions != null) {
+				for (Integer connectionIndex : positions) {
+					connections.set(connectionIndex, connection);
+				}
+			}
 		}
 		return connectionsForUsers;
 	}
 
+	/**
+	 * Maps each provider user id to every position it occupies in the
+	 * requested list, so results can be slotted in without scanning the list
+	 * and duplicate provider user ids are all filled.
+	 */
+	private static Map<String, List<Integer>> indexPositions(
+			List<String> providerUserIds) {
+		Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>(
+				providerUserIds.size() * 4 / 3 + 1);
+		int position = 0;
+		for (String providerUserId : providerUserIds) {
+			List<Integer> providerUserIdPositions = positions
+					.get(providerUserId);
+			if (providerUserIdPositions == null) {
+				providerUserIdPositions = new ArrayList<Integer>(1);
+				positions.put(providerUserId, providerUserIdPositions);
+			}
+			providerUserIdPositions.add(position++);
+		}
+		return positions;
+	}
+
 	public Connection<?> getConnection(ConnectionKey connectionKey) {
 
 		UserConnection userConnection = null;
@@ -166,32 +242,71 @@ class RooConnectionRepository implements ConnectionRepository {
 		return (Connection<A>) findPrimaryConnection(providerId);
 	}
 
-	@Transactional
 	public void addConnection(Connection<?> connection) {
 		ConnectionData data = connection.createData();
-		int rank = rooTemplate.getRank(userId, data.getProviderId());
-		rooTemplate.createUserConnection(userId, data.getProviderId(),
-				data.getProviderUserId(), rank, data.getDisplayName(),
+		rooTemplate.addUserConnection(userId, data.getProviderId(),
+				data.getProviderUserId(), data.getDisplayName(),
 				data.getProfileUrl(), data.getImageUrl(),
 				encrypt(data.getAccessToken()), encrypt(data.getSecret()),
 				encrypt(data.getRefreshToken()), data.getExpireTime());
 
 	}
 
+	/**
+	 * Writes the connection's data only if it differs from the stored
+	 * connection. Tokens are compared decrypted, as encryption may be
+	 * randomized, and unchanged tokens keep their stored ciphertext.
+	 * 
+	 * @throws OptimisticLockingFailureException
+	 *             if the stored connection is updated or removed concurrently,
+	 *             after it was read for comparison
+	 */
 	@Transactional
 	public void updateConnection(Connection<?> connection) {
 		ConnectionData data = connection.createData();
 		UserConnection userConnection = rooTemplate.getUserConnection(userId,
 				data.getProviderId(), data.getProviderUserId());
-		userConnection.setDisplayName(data.getDisplayName());
-		userConnection.setProfileUrl(data.getProfileUrl());
-		userConnection.setImageUrl(data.getImageUrl());
-		userConnection.setAccessToken(encrypt(data.getAccessToken()));
-		userConnection.setSecret(encrypt(data.getSecret()));
-		userConnection.setRefreshToken(encrypt(data.getRefreshToken()));
-		userConnection.setExpireTime(data.getExpireTime());
-		rooTemplate.saveUserConnection(userConnection);
-
+		if (userConnection == null) {
+			return;
+		}
+		String accessToken = userConnection.getAccessToken();
+		String secret = userConnection.getSecret();
+		String refreshToken = userConnection.getRefreshToken();
+		boolean tokensChanged = false;
+		if (!ObjectUtils.nullSafeEquals(decrypt(accessToken),
+				data.getAccessToken())) {
+			accessToken = encrypt(data.getAccessToken());
+			tokensChanged = true;
+		}
+		if (!ObjectUtils.nullSafeEquals(decrypt(secret), data.getSecret())) {
+			secret = encrypt(data.getSecret());
+			tokensChanged = true;
+		}
+		if (!ObjectUtils.nullSafeEquals(decrypt(refreshToken),
+				data.getRefreshToken())) {
+			refreshToken = encrypt(data.getRefreshToken());
+			tokensChanged = true;
+		}
+		if (!tokensChanged
+				&& ObjectUtils.nullSafeEquals(userConnection.getDisplayName(),
+						data.getDisplayName())
+				&& ObjectUtils.nullSafeEquals(userConnection.getProfileUrl(),
+						data.getProfileUrl())
+				&& ObjectUtils.nullSafeEquals(userConnection.getImageUrl(),
+						data.getImageUrl())
+				&& ObjectUtils.nullSafeEquals(userConnection.getExpireTime(),
+						data.getExpireTime())) {
+			return;
+		}
+		if (rooTemplate.updateUserConnection(userId, data.getProviderId(),
+				data.getProviderUserId(), data.getDisplayName(),
+				data.getProfileUrl(), data.getImageUrl(), accessToken, secret,
+				refreshToken, data.getExpireTime(),
+				userConnection.getVersion()) == 0) {
+			throw new OptimisticLockingFailureException("Connection "
+					+ connection.getKey() + " of user " + userId
+					+ " was changed since it was read for update");
+		}
 	}
 
 	public void removeConnections(String providerId) {
@@ -205,10 +320,10 @@ class RooConnectionRepository implements ConnectionRepository {
 
 	private Connection<?> findPrimaryConnection(String providerId) {
 
-		List<UserConnection> userConnections = rooTemplate
-				.getPrimaryUserConnections(userId, providerId);
-		if (userConnections.size() > 0) {
-			return connectionMapper.mapConnection(userConnections.get(0));
+		UserConnection userConnection = rooTemplate.getPrimaryUserConnection(
+				userId, providerId);
+		if (userConnection != null) {
+			return connectionMapper.mapConnection(userConnection);
 		} else {
 			return null;
 		}
@@ -220,7 +335,8 @@ class RooConnectionRepository implements ConnectionRepository {
 
 		public List<Connection<?>> mapConnections(
 				List<UserConnection> userConnections) {
-			List<Connection<?>> connections = new ArrayList<Connection<?>>();
+			List<Connection<?>> connections = new ArrayList<Connection<?>>(
+					userConnections.size());
 			for (UserConnection userConnection : userConnections) {
 				connections.add(mapConnection(userConnection));
 			}
@@ -228,10 +344,36 @@ class RooConnectionRepository implements ConnectionRepository {
 		}
 
 		public Connection<?> mapConnection(UserConnection userConnection) {
+			if (connectionCache == null) {
+				return createConnection(userConnection);
+			}
+			Connection<?> connection = connectionCache.get(userConnection);
+			if (connection == null) {
+				connection = createConnection(userConnection);
+				connectionCache.put(userConnection, connection);
+			}
+			return copyOnWrite(connection);
+		}
+
+		private <A> Connection<A> copyOnWrite(Connection<A> cachedConnection) {
+			return new CopyOnWriteConnection<A>(cachedConnection,
+					connectionFactoryLocator);
+		}
+
+		private Connection<?> createConnection(UserConnection userConnection) {
 			ConnectionData connectionData = mapConnectionData(userConnection);
 			ConnectionFactory<?> connectionFactory = connectionFactoryLocator
 					.getConnectionFactory(connectionData.getProviderId());
-			return connectionFactory.createConnection(connectionData);
+			long start = instrumentation.start();
+			try {
+				Connection<?> connection = connectionFactory
+						.createConnection(connectionData);
+				instrumentation.success(CREATE_CONNECTION, start, 1);
+				return connection;
+			} catch (RuntimeException e) {
+				instrumentation.failure(CREATE_CONNECTION, start);
+				throw e;
+			}
 		}
 
 		private ConnectionData mapConnectionData(UserConnection userConnection) {
@@ -246,10 +388,6 @@ class RooConnectionRepository implements ConnectionRepository {
 					userConnection.getExpireTime());
 		}
 
-		private String decrypt(String encryptedText) {
-			return encryptedText != null ? textEncryptor.decrypt(encryptedText)
-					: encryptedText;
-		}
 	}
 
 	private <A> String getProviderId(Class<A> apiType) {
@@ -261,4 +399,9 @@ class RooConnectionRepository implements ConnectionRepository {
 		return text != null ? textEncryptor.encrypt(text) : text;
 	}
 
+	private String decrypt(String encryptedText) {
+		return encryptedText != null ? textEncryptor.decrypt(encryptedText)
+				: encryptedText;
+	}
+
 }
\ No newline at end of file
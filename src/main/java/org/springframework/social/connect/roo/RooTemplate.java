@@ -15,6 +15,7 @@
  */
 package org.springframework.social.connect.roo;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -33,10 +34,58 @@ public interface RooTemplate {
 			String accessToken, String secret, String refreshToken,
 			Long expireTime);
 
-	public void removeUserConnection(String userId, String providerId,
+	/**
+	 * Creates a connection ranked after the user's existing connections to
+	 * the provider, allocating the rank as part of the insert.
+	 * 
+	 * @throws org.springframework.social.connect.DuplicateConnectionException
+	 *             if the user is already connected to the provider user
+	 */
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime);
+
+	/**
+	 * Creates the given connections in a single transaction, ranking each
+	 * after the user's existing connections to its provider and after the
+	 * connections to the same provider preceding it in the list. Ranks are
+	 * allocated with a query per user and provider, rather than per
+	 * connection, and the ranks of the given connections are set.
+	 * 
+	 * @throws org.springframework.social.connect.DuplicateConnectionException
+	 *             if a user is already connected to one of the provider
+	 *             users, or the list holds the same connection twice
+	 */
+	public void addUserConnections(List<UserConnection> userConnections);
+
+	/**
+	 * Updates the metadata and tokens of a connection without loading it,
+	 * incrementing its version, provided its version is still the given one -
+	 * a null version matching a connection never versioned.
+	 * 
+	 * @return the number of connections updated, zero if the connection has
+	 *         been removed or updated since the given version was read
+	 */
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version);
+
+	/**
+	 * Removes a connection, moving the user's connections to the provider
+	 * ranked after it up a rank, so that the primary connection always has
+	 * rank 1.
+	 * 
+	 * @return the number of connections removed
+	 */
+	public int removeUserConnection(String userId, String providerId,
 			String providerUserId);
 
-	public void removeUserConnections(String userId, String providerId);
+	/**
+	 * @return the number of connections removed
+	 */
+	public int removeUserConnections(String userId, String providerId);
 
 	public List<UserConnection> getUserConnections(String providerId,
 			String providerUserId);
@@ -52,12 +101,68 @@ public interface RooTemplate {
 	public List<UserConnection> getAllUserConnections(String userId,
 			MultiValueMap<String, String> providerUsers);
 
+	/**
+	 * Returns the connections of all of the given users, querying chunks of
+	 * users at a time rather than a user at a time. Each user's connections
+	 * are returned in the same order as by
+	 * {@link #getAllUserConnections(String)}.
+	 */
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds);
+
 	public int getRank(String userId, String providerId);
 
 	public List<UserConnection> getPrimaryUserConnections(String userId,
 			String providerId);
 
+	/**
+	 * Returns the user's lowest ranked connection to the provider, read as a
+	 * single row of the user_connection_rank index, or null if the user is not
+	 * connected to the provider.
+	 */
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId);
+
 	public Set<String> findUsersConnectedTo(String providerId,
 			Set<String> providerUserIds);
 
+	/**
+	 * Returns up to maxResults connections with an id greater than the given
+	 * id, in id order, for keyset paging over every connection. The returned
+	 * connections are not managed by a persistence context, so paging through
+	 * the whole table holds no more than a page of connections in memory.
+	 * 
+	 * @param afterId
+	 *            the id of the last connection of the previous page, or null
+	 *            for the first page
+	 */
+	public List<UserConnection> getUserConnectionsAfter(Long afterId,
+			int maxResults);
+
+	/**
+	 * Inserts the given connections, with the ranks and tokens they hold, in
+	 * a single transaction. The ids of the given connections are not
+	 * necessarily set.
+	 * 
+	 * @throws org.springframework.dao.DataIntegrityViolationException
+	 *             if a user is already connected to one of the provider users,
+	 *             or already has a connection of the same rank
+	 */
+	public void createUserConnections(List<UserConnection> userConnections);
+
+	/**
+	 * Returns up to maxResults connections to the provider which expire
+	 * before the given time, in order of expire time then id, for keyset
+	 * paging over the connections due for a token refresh. Connections
+	 * without an expire time are not returned. The returned connections are
+	 * not managed by a persistence context.
+	 * 
+	 * @param after
+	 *            the last connection of the previous page, or null for the
+	 *            first page
+	 */
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			String providerId, long expireTime, UserConnection after,
+			int maxResults);
+
 }
@@ -15,49 +15,172 @@
  */
 package org.springframework.social.connect.roo;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.SQLStateSQLExceptionTranslator;
+import org.springframework.orm.jpa.EntityManagerFactoryInfo;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.DuplicateConnectionException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 /**
  * RooTemplate implementation to enable use of Roo to persist UserConnections.
  * This is a prototype implementation which is functionally complete but can be
- * improved in terms of efficiency. In particular, the methods
- * getRank(),findUsersConnectedTo() and getAll(String userId,
- * MultiValueMap<String, String> providerUsers) are naive implementations which
- * use existing finder methods to load lists of objects and apply operations to
- * each of the loaded objects. These methods can be improved by writing more
- * specialised finder/remove methods on the entities themselves to remove need
- * to load lists of objects but delegate work to the DAO layer.
+ * improved in terms of efficiency. Some methods use existing finder methods to
+ * load lists of objects and apply operations to each of the loaded objects,
+ * and can be improved by writing more specialised finder/remove methods on the
+ * entities themselves to remove need to load lists of objects but delegate
+ * work to the DAO layer.
+ * 
+ * Lookups by sets of provider user ids - getAllUserConnections(String userId,
+ * MultiValueMap<String, String> providerUsers) and findUsersConnectedTo() -
+ * use IN queries, chunked for very large inputs. Connections are removed with
+ * bulk delete statements, and the ranks of the remaining connections moved up
+ * with a bulk update, which bypass the persistence context: entities already
+ * loaded in the current transaction are neither detached nor re-ranked.
+ * 
+ * Methods returning lists of connections run in read-only transactions and
+ * load read-only entities, which are not snapshotted for dirty checking:
+ * changes made to them are not flushed, even by saveUserConnection. Use
+ * getUserConnection to load a connection for update.
  * 
  * @author Michael Lavelle
  */
 @Service
 public class RooUserConnectionTemplate implements RooTemplate {
 
+	/**
+	 * Number of times addUserConnection attempts its insert when concurrent
+	 * inserts for the same user and provider take the rank it allocated.
+	 */
+	private static final int MAX_ADD_ATTEMPTS = 5;
+
+	/**
+	 * Upper bound in milliseconds of the random pause before the first retry
+	 * of addUserConnection, doubled for each further retry.
+	 */
+	private static final int ADD_RETRY_BACKOFF_MILLIS = 5;
+
+	private static final String READ_ONLY_HINT = "org.hibernate.readOnly";
+
+	// Selecting from an aggregate always yields a single row, so the having
+	// clause is what prevents inserting a duplicate connection
+	static final String INSERT_USER_CONNECTION_WITH_NEXT_RANK = "insert into user_connection (user_id, provider_id, provider_user_id, rank, display_name, profile_url, image_url, access_token, secret, refresh_token, expire_time, version)"
+			+ " select ?, ?, ?, coalesce(max(rank), 0) + 1, ?, ?, ?, ?, ?, ?, ?, 0 from user_connection"
+			+ " where user_id = ? and provider_id = ?"
+			+ " having coalesce(sum(case when provider_user_id = ? then 1 else 0 end), 0) = 0";
+
+	static final String INSERT_USER_CONNECTION = "insert into user_connection (user_id, provider_id, provider_user_id, rank, display_name, profile_url, image_url, access_token, secret, refresh_token, expire_time, version) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+
+	private int inClauseChunkSize = 500;
+
+	private Executor queryExecutor;
+
+	/**
+	 * Maximum number of values bound into a single IN clause, keeping
+	 * statements well within database parameter limits. Larger sets of values
+	 * are queried in chunks of this size. Defaults to 500.
+	 */
+	public void setInClauseChunkSize(int inClauseChunkSize) {
+		if (inClauseChunkSize < 1) {
+			throw new IllegalArgumentException(
+					"inClauseChunkSize must be greater than zero");
+		}
+		this.inClauseChunkSize = inClauseChunkSize;
+	}
+
+	/**
+	 * Executor used to run the chunks of a large findUsersConnectedTo lookup
+	 * in parallel. Chunks are run on the calling thread if no executor is set,
+	 * or if the lookup is made within a transaction, as other threads would
+	 * not see its uncommitted changes. Defaults to null.
+	 */
+	public void setQueryExecutor(Executor queryExecutor) {
+		this.queryExecutor = queryExecutor;
+	}
+
 	@Override
-	public Set<String> findUsersConnectedTo(String providerId,
+	public Set<String> findUsersConnectedTo(final String providerId,
 			Set<String> providerUserIds) {
-		return new HashSet<String>(UserConnection
-				.findUserIdsByProviderIdAndProviderUserIds(providerId,
-						providerUserIds).getResultList());
+		List<List<String>> providerUserIdsChunks = partition(providerUserIds,
+				inClauseChunkSize);
+		Set<String> userIds = new HashSet<String>();
+		if (queryExecutor == null || providerUserIdsChunks.size() < 2
+				|| TransactionSynchronizationManager.isActualTransactionActive()) {
+			for (List<String> providerUserIdsChunk : providerUserIdsChunks) {
+				userIds.addAll(UserConnection
+						.findUserIdsByProviderIdAndProviderUserIds(providerId,
+								providerUserIdsChunk).getResultList());
+			}
+			return userIds;
+		}
+		List<FutureTask<List<String>>> tasks = new ArrayList<FutureTask<List<String>>>(
+				providerUserIdsChunks.size());
+		for (final List<String> providerUserIdsChunk : providerUserIdsChunks) {
+			FutureTask<List<String>> task = new FutureTask<List<String>>(
+					new Callable<List<String>>() {
+						public List<String> call() {
+							return UserConnection
+									.findUserIdsByProviderIdAndProviderUserIds(
+											providerId, providerUserIdsChunk)
+									.getResultList();
+						}
+					});
+			tasks.add(task);
+			queryExecutor.execute(task);
+		}
+		for (FutureTask<List<String>> task : tasks) {
+			userIds.addAll(getResult(task));
+		}
+		return userIds;
 	}
 
 	@Override
+	@Transactional(readOnly = true)
 	public List<UserConnection> getPrimaryUserConnections(String userId,
 			String providerId) {
 
-		return UserConnection.findUserConnectionsByUserIdAndProviderIdAndRank(
-				userId, providerId, 1).getResultList();
+		return getReadOnlyResultList(UserConnection
+				.findUserConnectionsByUserIdAndProviderIdAndRank(userId,
+						providerId, 1));
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId) {
+		List<UserConnection> userConnections = getReadOnlyResultList(UserConnection
+				.findUserConnectionsByUserIdAndProviderId(userId, providerId)
+				.setMaxResults(1));
+		return userConnections.isEmpty() ? null : userConnections.get(0);
 	}
 
 	@Override
@@ -70,35 +193,79 @@ public class RooUserConnectionTemplate implements RooTemplate {
 	}
 
 	@Override
+	@Transactional(readOnly = true)
 	public List<UserConnection> getAllUserConnections(String userId,
 			MultiValueMap<String, String> providerUsers) {
 		List<UserConnection> remoteUsers = new ArrayList<UserConnection>();
 		for (Map.Entry<String, List<String>> providerUsersEntry : providerUsers
 				.entrySet()) {
 			String providerId = providerUsersEntry.getKey();
-			for (String providerUserId : providerUsersEntry.getValue()) {
-				UserConnection userConnection = getUserConnection(userId,
-						providerId, providerUserId);
-				if (userConnection != null) {
-					remoteUsers.add(userConnection);
-				}
+			List<UserConnection> userConnections = new ArrayList<UserConnection>();
+			for (List<String> providerUserIdsChunk : partition(
+					new LinkedHashSet<String>(providerUsersEntry.getValue()),
+					inClauseChunkSize)) {
+				userConnections
+						.addAll(getReadOnlyResultList(UserConnection
+								.findUserConnectionsByUserIdAndProviderIdAndProviderUserIds(
+										userId, providerId,
+										providerUserIdsChunk)));
 			}
+			remoteUsers.addAll(inProviderUserIdOrder(
+					providerUsersEntry.getValue(), userConnections));
 		}
 		return remoteUsers;
 	}
 
+	/**
+	 * Orders the connections loaded for a list of provider user ids as one
+	 * lookup per provider user id would have returned them - in the order of
+	 * the provider user ids, once for each time a provider user id is listed.
+	 */
+	static List<UserConnection> inProviderUserIdOrder(
+			List<String> providerUserIds, List<UserConnection> userConnections) {
+		Map<String, UserConnection> userConnectionsByProviderUserId = new HashMap<String, UserConnection>();
+		for (UserConnection userConnection : userConnections) {
+			userConnectionsByProviderUserId.put(
+					userConnection.getProviderUserId(), userConnection);
+		}
+		List<UserConnection> orderedUserConnections = new ArrayList<UserConnection>();
+		for (String providerUserId : providerUserIds) {
+			UserConnection userConnection = userConnectionsByProviderUserId
+					.get(providerUserId);
+			if (userConnection != null) {
+				orderedUserConnections.add(userConnection);
+			}
+		}
+		return orderedUserConnections;
+	}
+
 	@Override
+	@Transactional(readOnly = true)
 	public List<UserConnection> getAllUserConnections(String userId) {
 
-		return UserConnection.findUserConnectionsByUserId(userId)
-				.getResultList();
+		return getReadOnlyResultList(UserConnection
+				.findUserConnectionsByUserId(userId));
 	}
 
 	@Override
+	@Transactional(readOnly = true)
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds) {
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (List<String> userIdsChunk : partition(new LinkedHashSet<String>(
+				userIds), inClauseChunkSize)) {
+			userConnections.addAll(getReadOnlyResultList(UserConnection
+					.findUserConnectionsByUserIds(userIdsChunk)));
+		}
+		return userConnections;
+	}
+
+	@Override
+	@Transactional(readOnly = true)
 	public List<UserConnection> getAllUserConnections(String userId,
 			String providerId) {
-		return UserConnection.findUserConnectionsByUserIdAndProviderId(userId,
-				providerId).getResultList();
+		return getReadOnlyResultList(UserConnection
+				.findUserConnectionsByUserIdAndProviderId(userId, providerId));
 	}
 
 	@Override
@@ -115,35 +282,54 @@ public class RooUserConnectionTemplate implements RooTemplate {
 	}
 
 	@Override
+	@Transactional(readOnly = true)
 	public List<UserConnection> getUserConnections(String providerId,
 			String providerUserId) {
-		return UserConnection.findUserConnectionsByProviderIdAndProviderUserId(
-				providerId, providerUserId).getResultList();
+		return getReadOnlyResultList(UserConnection
+				.findUserConnectionsByProviderIdAndProviderUserId(providerId,
+						providerUserId));
 	}
 
 	@Override
 	@Transactional
-	public void removeUserConnections(String userId, String providerId) {
-		for (UserConnection userConnection : UserConnection
-				.findUserConnectionsByUserIdAndProviderId(userId, providerId)
-				.getResultList()) {
-			userConnection.remove();
-		}
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version) {
+		return UserConnection
+				.updateUserConnectionByUserIdAndProviderIdAndProviderUserId(
+						userId, providerId, providerUserId, displayName,
+						profileUrl, imageUrl, accessToken, secret,
+						refreshToken, expireTime, version).executeUpdate();
 	}
 
 	@Override
 	@Transactional
-	public void removeUserConnection(String userId, String providerId,
+	public int removeUserConnections(String userId, String providerId) {
+		return UserConnection.deleteUserConnectionsByUserIdAndProviderId(
+				userId, providerId).executeUpdate();
+	}
+
+	@Override
+	@Transactional
+	public int removeUserConnection(String userId, String providerId,
 			String providerUserId) {
-		UserConnection userConnection = null;
-		try {
-			userConnection = UserConnection
-					.findUserConnectionByUserIdAndProviderIdAndProviderUserId(
-							userId, providerId, providerUserId);
-			if (userConnection != null)
-				userConnection.remove();
-		} catch (EmptyResultDataAccessException e) {
+		List<Integer> ranks = UserConnection
+				.findRankByUserIdAndProviderIdAndProviderUserId(userId,
+						providerId, providerUserId).getResultList();
+		if (ranks.isEmpty()) {
+			return 0;
+		}
+		int removed = UserConnection
+				.deleteUserConnectionByUserIdAndProviderIdAndProviderUserId(
+						userId, providerId, providerUserId).executeUpdate();
+		if (removed > 0) {
+			UserConnection.negateRanksByUserIdAndProviderIdAndRankGreaterThan(
+					userId, providerId, ranks.get(0)).executeUpdate();
+			UserConnection.decrementNegatedRanksByUserIdAndProviderId(userId,
+					providerId).executeUpdate();
 		}
+		return removed;
 	}
 
 	@Override
@@ -179,6 +365,109 @@ public class RooUserConnectionTemplate implements RooTemplate {
 		return userConnection;
 	}
 
+	/**
+	 * Inserts the connection with the next free rank in a single statement,
+	 * which inserts nothing if the user is already connected to the provider
+	 * user. A concurrent insert for the same user and provider can still take
+	 * the same rank, violating the user_connection_rank index, in which case
+	 * the insert is retried in a new transaction after a short random pause -
+	 * unless it is part of a transaction started by the caller, which can no
+	 * longer be used. Only unique index violations are retried: a retry
+	 * either takes the next free rank or finds the connection a concurrent
+	 * insert has added, whereas other failures such as lock timeouts are
+	 * thrown at once.
+	 */
+	@Override
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime) {
+		boolean retryable = !TransactionSynchronizationManager
+				.isActualTransactionActive();
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (insertUserConnectionWithNextRank(userId, providerId,
+						providerUserId, displayName, profileUrl, imageUrl,
+						accessToken, secret, refreshToken, expireTime) == 0) {
+					throw new DuplicateConnectionException(new ConnectionKey(
+							providerId, providerUserId));
+				}
+				return;
+			} catch (DataIntegrityViolationException e) {
+				if (!retryable || attempt == MAX_ADD_ATTEMPTS) {
+					throw e;
+				}
+				backOff(attempt, e);
+			}
+		}
+	}
+
+	/**
+	 * Pauses for a random time growing with the number of attempts made, so
+	 * that inserts which collided do not collide again on their next attempt.
+	 * Throws the failure being retried if interrupted.
+	 */
+	static void backOff(int attempt, RuntimeException failure) {
+		try {
+			long maximumMillis = ADD_RETRY_BACKOFF_MILLIS << (attempt - 1);
+			Thread.sleep((long) (Math.random() * maximumMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw failure;
+		}
+	}
+
+	/**
+	 * Translates a failed native statement to the DataAccessException of the
+	 * SQLException causing it, so callers can tell integrity violations from
+	 * other failures - which the JPA provider reports alike, as a
+	 * PersistenceException or as the JpaSystemException it is translated to.
+	 * Returns the failure unchanged if it was not caused by an SQLException.
+	 */
+	static RuntimeException translate(String task, String sql,
+			RuntimeException e) {
+		for (Throwable cause = e.getCause(); cause != null; cause = cause
+				.getCause()) {
+			if (cause instanceof SQLException) {
+				DataAccessException translated = new SQLStateSQLExceptionTranslator()
+						.translate(task, sql, (SQLException) cause);
+				if (translated != null) {
+					return translated;
+				}
+			}
+		}
+		return e;
+	}
+
+	@Transactional
+	protected int insertUserConnectionWithNextRank(String userId,
+			String providerId, String providerUserId, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		Query insert = UserConnection.entityManager().createNativeQuery(
+				INSERT_USER_CONNECTION_WITH_NEXT_RANK);
+		int position = 1;
+		insert.setParameter(position++, userId);
+		insert.setParameter(position++, providerId);
+		insert.setParameter(position++, providerUserId);
+		insert.setParameter(position++, displayName);
+		insert.setParameter(position++, profileUrl);
+		insert.setParameter(position++, imageUrl);
+		insert.setParameter(position++, accessToken);
+		insert.setParameter(position++, secret);
+		insert.setParameter(position++, refreshToken);
+		insert.setParameter(position++, expireTime);
+		insert.setParameter(position++, userId);
+		insert.setParameter(position++, providerId);
+		insert.setParameter(position++, providerUserId);
+		try {
+			return insert.executeUpdate();
+		} catch (RuntimeException e) {
+			throw translate("insertUserConnectionWithNextRank",
+					INSERT_USER_CONNECTION_WITH_NEXT_RANK, e);
+		}
+	}
+
 	@Override
 	@Transactional
 	public UserConnection saveUserConnection(UserConnection userConnection) {
@@ -186,4 +475,234 @@ public class RooUserConnectionTemplate implements RooTemplate {
 		return userConnection;
 	}
 
+	/**
+	 * Loads the page as read-only entities and detaches them, so that paging
+	 * within a caller's transaction does not accumulate every page in its
+	 * persistence context.
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<UserConnection> getUserConnectionsAfter(Long afterId,
+			int maxResults) {
+		List<UserConnection> userConnections = getReadOnlyResultList(UserConnection
+				.findUserConnectionsByIdGreaterThan(
+						afterId == null ? Long.MIN_VALUE : afterId)
+				.setMaxResults(maxResults));
+		detach(userConnections);
+		return userConnections;
+	}
+
+	/**
+	 * Loads the page as read-only entities and detaches them, using the
+	 * user_connection_provider_expire index.
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			String providerId, long expireTime, UserConnection after,
+			int maxResults) {
+		List<UserConnection> userConnections = getReadOnlyResultList(UserConnection
+				.findUserConnectionsByProviderIdAndExpireTimeLessThan(
+						providerId, expireTime,
+						after == null ? Long.MIN_VALUE : after.getExpireTime(),
+						after == null ? Long.MIN_VALUE : after.getId())
+				.setMaxResults(maxResults));
+		detach(userConnections);
+		return userConnections;
+	}
+
+	/**
+	 * Inserts the connections as a single JDBC batch on the connection of the
+	 * current transaction, after flushing the persistence context. Batching
+	 * is not possible through persist(), as the identity ids of
+	 * UserConnection are only known once each row is inserted. The batch is
+	 * run with a JdbcTemplate on the DataSource of the EntityManagerFactory
+	 * when the transaction manager exposes the transaction's JDBC connection
+	 * on it, as JpaTransactionManager does given a JpaDialect such as
+	 * HibernateJpaDialect; otherwise each connection is inserted with its own
+	 * native query. The ids of the given connections are not set.
+	 */
+	@Override
+	@Transactional
+	public void createUserConnections(List<UserConnection> userConnections) {
+		EntityManager entityManager = UserConnection.entityManager();
+		entityManager.flush();
+		DataSource dataSource = getTransactionDataSource(entityManager);
+		if (dataSource != null) {
+			JdbcRooTemplate.insertUserConnections(new JdbcTemplate(dataSource),
+					userConnections);
+			return;
+		}
+		Query insert = entityManager.createNativeQuery(INSERT_USER_CONNECTION);
+		for (UserConnection userConnection : userConnections) {
+			int position = 1;
+			insert.setParameter(position++, userConnection.getUserId());
+			insert.setParameter(position++, userConnection.getProviderId());
+			insert.setParameter(position++, userConnection.getProviderUserId());
+			insert.setParameter(position++, userConnection.getRank());
+			insert.setParameter(position++, userConnection.getDisplayName());
+			insert.setParameter(position++, userConnection.getProfileUrl());
+			insert.setParameter(position++, userConnection.getImageUrl());
+			insert.setParameter(position++, userConnection.getAccessToken());
+			insert.setParameter(position++, userConnection.getSecret());
+			insert.setParameter(position++, userConnection.getRefreshToken());
+			insert.setParameter(position++, userConnection.getExpireTime());
+			try {
+				insert.executeUpdate();
+			} catch (RuntimeException e) {
+				throw translate("createUserConnections",
+						INSERT_USER_CONNECTION, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the DataSource of the EntityManagerFactory if the JDBC
+	 * connection of the current transaction is bound to it, or null.
+	 */
+	private static DataSource getTransactionDataSource(
+			EntityManager entityManager) {
+		EntityManagerFactory entityManagerFactory = entityManager
+				.getEntityManagerFactory();
+		if (entityManagerFactory instanceof EntityManagerFactoryInfo) {
+			DataSource dataSource = ((EntityManagerFactoryInfo) entityManagerFactory)
+					.getDataSource();
+			if (dataSource != null
+					&& TransactionSynchronizationManager
+							.hasResource(dataSource)) {
+				return dataSource;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	@Transactional
+	public void addUserConnections(List<UserConnection> userConnections) {
+		rankUserConnections(this, userConnections);
+		createUserConnections(userConnections);
+	}
+
+	/**
+	 * Runs the query without snapshotting the loaded entities for dirty
+	 * checking, sparing the persistence context a copy of each row's state.
+	 */
+	private static <T> List<T> getReadOnlyResultList(TypedQuery<T> query) {
+		return query.setHint(READ_ONLY_HINT, Boolean.TRUE).getResultList();
+	}
+
+	/**
+	 * Sets the rank of each connection to follow the user's existing
+	 * connections to its provider and the preceding connections in the list,
+	 * querying the next rank once per user and provider.
+	 * 
+	 * @throws DuplicateConnectionException
+	 *             if a user is already connected to one of the provider
+	 *             users, or the list holds the same connection twice
+	 */
+	static void rankUserConnections(RooTemplate rooTemplate,
+			List<UserConnection> userConnections) {
+		Map<String, MultiValueMap<String, String>> providerUsersByUserId = new LinkedHashMap<String, MultiValueMap<String, String>>();
+		Set<List<String>> connectionKeys = new HashSet<List<String>>(
+				userConnections.size() * 4 / 3 + 1);
+		for (UserConnection userConnection : userConnections) {
+			if (!connectionKeys.add(Arrays.asList(userConnection.getUserId(),
+					userConnection.getProviderId(),
+					userConnection.getProviderUserId()))) {
+				throw new DuplicateConnectionException(new ConnectionKey(
+						userConnection.getProviderId(),
+						userConnection.getProviderUserId()));
+			}
+			MultiValueMap<String, String> providerUsers = providerUsersByUserId
+					.get(userConnection.getUserId());
+			if (providerUsers == null) {
+				providerUsers = new LinkedMultiValueMap<String, String>();
+				providerUsersByUserId.put(userConnection.getUserId(),
+						providerUsers);
+			}
+			providerUsers.add(userConnection.getProviderId(),
+					userConnection.getProviderUserId());
+		}
+		Map<List<String>, Integer> nextRanks = new HashMap<List<String>, Integer>();
+		for (Map.Entry<String, MultiValueMap<String, String>> providerUsersEntry : providerUsersByUserId
+				.entrySet()) {
+			String userId = providerUsersEntry.getKey();
+			List<UserConnection> existingConnections = rooTemplate
+					.getAllUserConnections(userId,
+							providerUsersEntry.getValue());
+			if (!existingConnections.isEmpty()) {
+				throw new DuplicateConnectionException(new ConnectionKey(
+						existingConnections.get(0).getProviderId(),
+						existingConnections.get(0).getProviderUserId()));
+			}
+			for (String providerId : providerUsersEntry.getValue().keySet()) {
+				nextRanks.put(Arrays.asList(userId, providerId),
+						rooTemplate.getRank(userId, providerId));
+			}
+		}
+		for (UserConnection userConnection : userConnections) {
+			List<String> key = Arrays.asList(userConnection.getUserId(),
+					userConnection.getProviderId());
+			int rank = nextRanks.get(key);
+			userConnection.setRank(rank);
+			nextRanks.put(key, rank + 1);
+		}
+	}
+
+	private static void detach(List<UserConnection> userConnections) {
+		EntityManager entityManager = UserConnection.entityManager();
+		for (UserConnection userConnection : userConnections) {
+			entityManager.detach(userConnection);
+		}
+	}
+
+	/**
+	 * Splits values into chunks of at most chunkSize. The last chunk is padded
+	 * to the next power of two, capped at chunkSize, by repeating its last
+	 * value, so only a handful of distinct IN clause lengths are ever
+	 * prepared and statement plans can be reused.
+	 */
+	static <T> List<List<T>> partition(Collection<T> values,
+			int chunkSize) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		List<T> chunk = new ArrayList<T>(Math.min(chunkSize, values.size()));
+		for (T value : values) {
+			if (chunk.size() == chunkSize) {
+				chunks.add(chunk);
+				chunk = new ArrayList<T>(chunkSize);
+			}
+			chunk.add(value);
+		}
+		if (!chunk.isEmpty()) {
+			int paddedSize = 1;
+			while (paddedSize < chunk.size()) {
+				paddedSize <<= 1;
+			}
+			T lastValue = chunk.get(chunk.size() - 1);
+			while (chunk.size() < Math.min(paddedSize, chunkSize)) {
+				chunk.add(lastValue);
+			}
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static <T> T getResult(FutureTask<T> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while waiting for query results", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
 }
@@ -17,16 +17,23 @@ package org.springframework.social.connect.roo;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.ConnectionSignUp;
 import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
 
 /**
  * {@link UsersConnectionRepository} that uses the Roo to persist connection
@@ -36,19 +43,42 @@ import org.springframework.social.connect.UsersConnectionRepository;
  */
 public class RooUsersConnectionRepository implements UsersConnectionRepository {
 
-	private final RooTemplate rooTemplate;
+	private static final String FIND_USER_IDS_WITH_CONNECTION = "UsersConnectionRepository.findUserIdsWithConnection";
+
+	private static final String FIND_USER_IDS_CONNECTED_TO = "UsersConnectionRepository.findUserIdsConnectedTo";
+
+	private static final String FIND_ALL_CONNECTION_DATA = "UsersConnectionRepository.findAllConnectionData";
+
+	private static final String FIND_ALL_CONNECTIONS = "UsersConnectionRepository.findAllConnections";
+
+	private static final String ADD_CONNECTIONS = "UsersConnectionRepository.addConnections";
+
+	private final RooTemplate targetRooTemplate;
 
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 
-	private final TextEncryptor textEncryptor;
+	private final TextEncryptor targetTextEncryptor;
 
 	private ConnectionSignUp connectionSignUp;
 
+	private RooTemplate rooTemplate;
+
+	private TextEncryptor textEncryptor;
+
+	private Instrumentation instrumentation = Instrumentation.DISABLED;
+
+	private ConnectionCache connectionCache;
+
 	public RooUsersConnectionRepository(RooTemplate rooTemplate,
 			ConnectionFactoryLocator connectionFactoryLocator,
 			TextEncryptor textEncryptor) {
+		this.targetRooTemplate = rooTemplate;
+		// Resolved factories are shared by all ConnectionRepository instances
+		// created by this repository
+		this.connectionFactoryLocator = new CachingConnectionFactoryLocator(
+				connectionFactoryLocator);
+		this.targetTextEncryptor = textEncryptor;
 		this.rooTemplate = rooTemplate;
-		this.connectionFactoryLocator = connectionFactoryLocator;
 		this.textEncryptor = textEncryptor;
 	}
 
@@ -65,7 +95,79 @@ public class RooUsersConnectionRepository implements UsersConnectionRepository {
 		this.connectionSignUp = connectionSignUp;
 	}
 
+	/**
+	 * The sink to record the latency, outcome and rows of each operation to,
+	 * covering this repository, the ConnectionRepository instances it
+	 * creates, the RooTemplate, token encryption and decryption, and the
+	 * creation of each Connection. Defaults to null, recording nothing.
+	 * 
+	 * @see HistogramMetricsSink
+	 */
+	public void setMetricsSink(MetricsSink metricsSink) {
+		if (metricsSink == null) {
+			this.rooTemplate = targetRooTemplate;
+			this.textEncryptor = targetTextEncryptor;
+			this.instrumentation = Instrumentation.DISABLED;
+		} else {
+			this.rooTemplate = new InstrumentedRooTemplate(targetRooTemplate,
+					metricsSink);
+			this.textEncryptor = new InstrumentedTextEncryptor(
+					targetTextEncryptor, metricsSink);
+			this.instrumentation = new Instrumentation(metricsSink);
+		}
+	}
+
+	/**
+	 * The maximum number of Connection instances to cache, or zero to build
+	 * a new Connection, and provider API binding, from each stored connection
+	 * read. Cached instances are shared by the ConnectionRepository instances
+	 * this repository creates, and reused for as long as the stored
+	 * connection is unchanged: any write to it, including a token refresh
+	 * saved with updateConnection, builds a new instance on the next read.
+	 * Each read returns its own Connection delegating to the cached instance:
+	 * refresh or sync builds it a private copy, leaving the cached instance
+	 * unchanged. Only enable this if the API bindings of your providers are
+	 * thread-safe.
+	 * Defaults to zero.
+	 */
+	public void setConnectionCacheSize(int connectionCacheSize) {
+		if (connectionCacheSize < 0) {
+			throw new IllegalArgumentException(
+					"connectionCacheSize cannot be negative");
+		}
+		this.connectionCache = connectionCacheSize == 0 ? null
+				: new ConnectionCache(connectionCacheSize);
+	}
+
+	/**
+	 * @return the number of reads served a cached Connection instance
+	 */
+	public long getConnectionCacheHitCount() {
+		return connectionCache == null ? 0 : connectionCache.getHitCount();
+	}
+
+	/**
+	 * @return the number of reads which built a new Connection instance while
+	 *         the connection cache was enabled
+	 */
+	public long getConnectionCacheMissCount() {
+		return connectionCache == null ? 0 : connectionCache.getMissCount();
+	}
+
 	public List<String> findUserIdsWithConnection(Connection<?> connection) {
+		long start = instrumentation.start();
+		try {
+			List<String> userIds = doFindUserIdsWithConnection(connection);
+			instrumentation.success(FIND_USER_IDS_WITH_CONNECTION, start,
+					userIds.size());
+			return userIds;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_USER_IDS_WITH_CONNECTION, start);
+			throw e;
+		}
+	}
+
+	private List<String> doFindUserIdsWithConnection(Connection<?> connection) {
 
 		ConnectionKey key = connection.getKey();
 		List<UserConnection> localUserConnections = rooTemplate
@@ -87,17 +189,193 @@ public class RooUsersConnectionRepository implements UsersConnectionRepository {
 
 	public Set<String> findUserIdsConnectedTo(String providerId,
 			Set<String> providerUserIds) {
+		long start = instrumentation.start();
+		try {
+			Set<String> userIds = rooTemplate.findUsersConnectedTo(providerId,
+					providerUserIds);
+			instrumentation.success(FIND_USER_IDS_CONNECTED_TO, start,
+					userIds.size());
+			return userIds;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_USER_IDS_CONNECTED_TO, start);
+			throw e;
+		}
+	}
 
-		return rooTemplate.findUsersConnectedTo(providerId, providerUserIds);
+	/**
+	 * Returns the data of all of the given user's connections, grouped by
+	 * provider id. Unlike
+	 * {@link ConnectionRepository#findAllConnections()}, no Connection
+	 * instances are created and tokens are only decrypted when first read from
+	 * the returned ConnectionData, making this suited to pages which only
+	 * display connection metadata.
+	 */
+	public MultiValueMap<String, ConnectionData> findAllConnectionData(
+			String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		long start = instrumentation.start();
+		try {
+			MultiValueMap<String, ConnectionData> connectionData = createRooConnectionRepository(
+					userId).findAllConnectionData();
+			int rows = 0;
+			for (List<ConnectionData> providerConnectionData : connectionData
+					.values()) {
+				rows += providerConnectionData.size();
+			}
+			instrumentation.success(FIND_ALL_CONNECTION_DATA, start, rows);
+			return connectionData;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_ALL_CONNECTION_DATA, start);
+			throw e;
+		}
+	}
 
+	/**
+	 * Returns the connections of each of the given users, grouped by provider
+	 * id as by {@link ConnectionRepository#findAllConnections()}, in the order
+	 * of the given user ids. Connections are read with IN queries over chunks
+	 * of users rather than a query per user, making this suited to jobs
+	 * reading the connections of many users, such as notification digests.
+	 */
+	public Map<String, MultiValueMap<String, Connection<?>>> findAllConnections(
+			Collection<String> userIds) {
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds cannot be null");
+		}
+		long start = instrumentation.start();
+		try {
+			Map<String, List<UserConnection>> userConnectionsByUserId = new LinkedHashMap<String, List<UserConnection>>();
+			for (String userId : userIds) {
+				if (userId == null) {
+					throw new IllegalArgumentException(
+							"userIds cannot contain null");
+				}
+				userConnectionsByUserId.put(userId,
+						new ArrayList<UserConnection>());
+			}
+			List<UserConnection> allUserConnections = userConnectionsByUserId
+					.isEmpty() ? Collections.<UserConnection> emptyList()
+					: rooTemplate.getAllUserConnections(userConnectionsByUserId
+							.keySet());
+			for (UserConnection userConnection : allUserConnections) {
+				List<UserConnection> userConnections = userConnectionsByUserId
+						.get(userConnection.getUserId());
+				if (userConnections != null) {
+					userConnections.add(userConnection);
+				}
+			}
+			Map<String, MultiValueMap<String, Connection<?>>> connections = new LinkedHashMap<String, MultiValueMap<String, Connection<?>>>(
+					userConnectionsByUserId.size() * 4 / 3 + 1);
+			for (Map.Entry<String, List<UserConnection>> userConnectionsEntry : userConnectionsByUserId
+					.entrySet()) {
+				connections.put(userConnectionsEntry.getKey(),
+						createRooConnectionRepository(
+								userConnectionsEntry.getKey())
+								.mapAllConnections(
+										userConnectionsEntry.getValue()));
+			}
+			instrumentation.success(FIND_ALL_CONNECTIONS, start,
+					allUserConnections.size());
+			return connections;
+		} catch (RuntimeException e) {
+			instrumentation.failure(FIND_ALL_CONNECTIONS, start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds the given connections of the given user in a single transaction,
+	 * ranking them after the user's existing connections in the order given.
+	 * Unlike adding each connection through a ConnectionRepository, ranks
+	 * are allocated once per provider and the connections are inserted as a
+	 * single JDBC batch.
+	 * 
+	 * @throws org.springframework.social.connect.DuplicateConnectionException
+	 *             if the user is already connected to one of the provider
+	 *             users, in which case no connection is added
+	 */
+	public void addConnections(String userId,
+			Collection<? extends Connection<?>> connections) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		MultiValueMap<String, Connection<?>> connectionsByUserId = new LinkedMultiValueMap<String, Connection<?>>();
+		connectionsByUserId.put(userId, new ArrayList<Connection<?>>(
+				connections));
+		addConnections(connectionsByUserId);
+	}
+
+	/**
+	 * Adds the given connections of each user id in a single transaction, eg.
+	 * when onboarding many users at once.
+	 * 
+	 * @see #addConnections(String, Collection)
+	 */
+	public void addConnections(
+			MultiValueMap<String, Connection<?>> connectionsByUserId) {
+		long start = instrumentation.start();
+		try {
+			List<UserConnection> userConnections = new ArrayList<UserConnection>();
+			for (Map.Entry<String, List<Connection<?>>> userConnectionsEntry : connectionsByUserId
+					.entrySet()) {
+				for (Connection<?> connection : userConnectionsEntry
+						.getValue()) {
+					userConnections.add(createUserConnection(
+							userConnectionsEntry.getKey(), connection));
+				}
+			}
+			if (!userConnections.isEmpty()) {
+				rooTemplate.addUserConnections(userConnections);
+			}
+			instrumentation.success(ADD_CONNECTIONS, start,
+					userConnections.size());
+		} catch (RuntimeException e) {
+			instrumentation.failure(ADD_CONNECTIONS, start);
+			throw e;
+		}
 	}
 
 	public ConnectionRepository createConnectionRepository(String userId) {
 		if (userId == null) {
 			throw new IllegalArgumentException("userId cannot be null");
 		}
+		ConnectionRepository connectionRepository = createRooConnectionRepository(
+				userId);
+		if (instrumentation == Instrumentation.DISABLED) {
+			return connectionRepository;
+		}
+		return new InstrumentedConnectionRepository(connectionRepository,
+				instrumentation);
+	}
+
+	private RooConnectionRepository createRooConnectionRepository(
+			String userId) {
 		return new RooConnectionRepository(userId, rooTemplate,
-				connectionFactoryLocator, textEncryptor);
+				connectionFactoryLocator, textEncryptor, instrumentation,
+				connectionCache);
+	}
+
+	private UserConnection createUserConnection(String userId,
+			Connection<?> connection) {
+		ConnectionData data = connection.createData();
+		UserConnection userConnection = new UserConnection();
+		userConnection.setUserId(userId);
+		userConnection.setProviderId(data.getProviderId());
+		userConnection.setProviderUserId(data.getProviderUserId());
+		userConnection.setDisplayName(data.getDisplayName());
+		userConnection.setProfileUrl(data.getProfileUrl());
+		userConnection.setImageUrl(data.getImageUrl());
+		userConnection.setAccessToken(encrypt(data.getAccessToken()));
+		userConnection.setSecret(encrypt(data.getSecret()));
+		userConnection.setRefreshToken(encrypt(data.getRefreshToken()));
+		userConnection.setExpireTime(data.getExpireTime());
+		return userConnection;
+	}
+
+	private String encrypt(String text) {
+		return text != null ? textEncryptor.encrypt(text) : text;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves connections between shards after the shards of a
+ * {@link ShardedRooTemplate} change, eg. when a shard is added. Every
+ * connection of each source shard is read in id order, a batch at a time.
+ * For each connection held by a shard other than the one the sharded
+ * template now routes its user to, all of the user's connections to that
+ * provider are copied to that shard together, with their ranks and tokens as
+ * stored, then removed from the source shard without moving up the ranks of
+ * connections not yet removed, so that ranks are kept even when a user's
+ * connections to a provider span several batches.
+ * <p>
+ * Connections already present on their new shard are not copied again, so a
+ * rebalance interrupted part way can be run again to completion. Until a
+ * user's connections have been moved, reads through the sharded template do
+ * not find them, and writes would allocate conflicting ranks, so writes
+ * should be paused while rebalancing.
+ * 
+ * @author Michael Lavelle
+ */
+public class ShardRebalancer {
+
+	private final List<RooTemplate> sourceShards;
+
+	private final ShardedRooTemplate shardedRooTemplate;
+
+	private int batchSize = 1000;
+
+	/**
+	 * @param sourceShards
+	 *            the shards connections are held by, typically those of the
+	 *            previous ShardedRooTemplate. Shards which remain shards of
+	 *            the new template must be the same RooTemplate instances.
+	 * @param shardedRooTemplate
+	 *            the sharded template to move connections to the shards of
+	 */
+	public ShardRebalancer(List<? extends RooTemplate> sourceShards,
+			ShardedRooTemplate shardedRooTemplate) {
+		this.sourceShards = new ArrayList<RooTemplate>(sourceShards);
+		this.shardedRooTemplate = shardedRooTemplate;
+	}
+
+	/**
+	 * Number of connections read from a source shard at a time. Defaults to
+	 * 1000.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"batchSize must be greater than zero");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Moves every connection held by a source shard other than its user's
+	 * shard.
+	 * 
+	 * @return the number of connections moved
+	 */
+	public long rebalance() {
+		long moved = 0;
+		for (RooTemplate sourceShard : sourceShards) {
+			List<UserConnection> batch = sourceShard.getUserConnectionsAfter(
+					null, batchSize);
+			while (!batch.isEmpty()) {
+				moved += moveMisplacedConnections(sourceShard, batch);
+				if (batch.size() < batchSize) {
+					break;
+				}
+				batch = sourceShard.getUserConnectionsAfter(
+						batch.get(batch.size() - 1).getId(), batchSize);
+			}
+		}
+		return moved;
+	}
+
+	private int moveMisplacedConnections(RooTemplate sourceShard,
+			List<UserConnection> batch) {
+		Set<List<String>> misplacedGroups = new LinkedHashSet<List<String>>();
+		for (UserConnection userConnection : batch) {
+			RooTemplate shard = shardedRooTemplate.getShard(userConnection
+					.getUserId());
+			if (shard != sourceShard) {
+				misplacedGroups.add(Arrays.asList(userConnection.getUserId(),
+						userConnection.getProviderId()));
+			}
+		}
+		Map<RooTemplate, List<UserConnection>> misplacedByShard = new LinkedHashMap<RooTemplate, List<UserConnection>>();
+		for (List<String> group : misplacedGroups) {
+			RooTemplate shard = shardedRooTemplate.getShard(group.get(0));
+			List<UserConnection> misplaced = misplacedByShard.get(shard);
+			if (misplaced == null) {
+				misplaced = new ArrayList<UserConnection>();
+				misplacedByShard.put(shard, misplaced);
+			}
+			misplaced.addAll(sourceShard.getAllUserConnections(group.get(0),
+					group.get(1)));
+		}
+		int moved = 0;
+		for (Map.Entry<RooTemplate, List<UserConnection>> misplacedEntry : misplacedByShard
+				.entrySet()) {
+			copyMissingConnections(misplacedEntry.getKey(),
+					misplacedEntry.getValue());
+			moved += misplacedEntry.getValue().size();
+		}
+		for (List<String> group : misplacedGroups) {
+			sourceShard.removeUserConnections(group.get(0), group.get(1));
+		}
+		return moved;
+	}
+
+	/**
+	 * Creates the given connections on the shard, other than those it already
+	 * holds, eg. copied by an interrupted rebalance.
+	 */
+	private void copyMissingConnections(RooTemplate shard,
+			List<UserConnection> userConnections) {
+		Set<String> userIds = new LinkedHashSet<String>();
+		for (UserConnection userConnection : userConnections) {
+			userIds.add(userConnection.getUserId());
+		}
+		Set<List<String>> existingKeys = new HashSet<List<String>>();
+		for (UserConnection existing : shard.getAllUserConnections(userIds)) {
+			existingKeys.add(connectionKey(existing));
+		}
+		List<UserConnection> missing = new ArrayList<UserConnection>(
+				userConnections.size());
+		for (UserConnection userConnection : userConnections) {
+			if (!existingKeys.contains(connectionKey(userConnection))) {
+				missing.add(userConnection);
+			}
+		}
+		if (!missing.isEmpty()) {
+			shard.createUserConnections(missing);
+		}
+	}
+
+	private static List<String> connectionKey(UserConnection userConnection) {
+		return Arrays.asList(userConnection.getUserId(),
+				userConnection.getProviderId(),
+				userConnection.getProviderUserId());
+	}
+
+}
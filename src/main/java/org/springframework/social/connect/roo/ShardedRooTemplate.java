@@ -0,0 +1,472 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * RooTemplate spreading connections over several shards, each a RooTemplate
+ * over its own database, eg. a JdbcRooTemplate per DataSource. All of a
+ * user's connections are held by the shard chosen by hashing the user id, to
+ * which every operation on the user's connections is routed. Lookups by
+ * provider user - getUserConnections and findUsersConnectedTo - are made on
+ * every shard and their results merged.
+ *
+ * Operations made on several shards are run in parallel on the executor, if
+ * one is set, with each shard given the configured time to respond, and
+ * otherwise on the calling thread one shard after another. They are also run
+ * on the calling thread within a transaction, which shards outside the
+ * transaction's own database cannot take part in.
+ *
+ * Writes of connections of several users, by addUserConnections and
+ * createUserConnections, are made to each shard in turn, and are not atomic
+ * across shards. Connection ids are allocated by each shard, so connections
+ * of different shards can share an id: pages merged from every shard order
+ * such connections by shard, in the order the shards were given.
+ *
+ * @author Michael Lavelle
+ * @see ShardRebalancer
+ */
+public class ShardedRooTemplate implements RooTemplate {
+
+	private final List<RooTemplate> shards;
+
+	private Executor executor;
+
+	private long shardTimeoutMillis = 5000;
+
+	/**
+	 * @param shards
+	 *            the shards, in a fixed order: changing the number or order
+	 *            of shards changes the shard of most users, whose connections
+	 *            must then be moved by a {@link ShardRebalancer}
+	 */
+	public ShardedRooTemplate(List<? extends RooTemplate> shards) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("shards cannot be empty");
+		}
+		this.shards = Collections.unmodifiableList(new ArrayList<RooTemplate>(
+				shards));
+	}
+
+	/**
+	 * Executor used to run operations on several shards in parallel.
+	 * Defaults to null, running them on the calling thread.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Time in milliseconds each shard is given to respond to an operation run
+	 * on the executor, after which the operation fails with a
+	 * QueryTimeoutException, or zero or less to wait indefinitely. Defaults
+	 * to 5000.
+	 */
+	public void setShardTimeoutMillis(long shardTimeoutMillis) {
+		this.shardTimeoutMillis = shardTimeoutMillis;
+	}
+
+	public List<RooTemplate> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Returns the shard holding the given user's connections.
+	 */
+	public RooTemplate getShard(String userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId cannot be null");
+		}
+		return shards.get((userId.hashCode() & Integer.MAX_VALUE)
+				% shards.size());
+	}
+
+	@Override
+	public UserConnection saveUserConnection(UserConnection userConnection) {
+		return getShard(userConnection.getUserId()).saveUserConnection(
+				userConnection);
+	}
+
+	@Override
+	public UserConnection createUserConnection(String userId,
+			String providerId, String providerUserId, int rank,
+			String displayName, String profileUrl, String imageUrl,
+			String accessToken, String secret, String refreshToken,
+			Long expireTime) {
+		return getShard(userId).createUserConnection(userId, providerId,
+				providerUserId, rank, displayName, profileUrl, imageUrl,
+				accessToken, secret, refreshToken, expireTime);
+	}
+
+	@Override
+	public void addUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime) {
+		getShard(userId).addUserConnection(userId, providerId,
+				providerUserId, displayName, profileUrl, imageUrl, accessToken,
+				secret, refreshToken, expireTime);
+	}
+
+	@Override
+	public void addUserConnections(List<UserConnection> userConnections) {
+		for (Map.Entry<RooTemplate, List<UserConnection>> shardConnections : groupByShard(
+				userConnections).entrySet()) {
+			shardConnections.getKey().addUserConnections(
+					shardConnections.getValue());
+		}
+	}
+
+	@Override
+	public void createUserConnections(List<UserConnection> userConnections) {
+		for (Map.Entry<RooTemplate, List<UserConnection>> shardConnections : groupByShard(
+				userConnections).entrySet()) {
+			shardConnections.getKey().createUserConnections(
+					shardConnections.getValue());
+		}
+	}
+
+	@Override
+	public int updateUserConnection(String userId, String providerId,
+			String providerUserId, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret,
+			String refreshToken, Long expireTime, Integer version) {
+		return getShard(userId).updateUserConnection(userId, providerId,
+				providerUserId, displayName, profileUrl, imageUrl, accessToken,
+				secret, refreshToken, expireTime, version);
+	}
+
+	@Override
+	public int removeUserConnection(String userId, String providerId,
+			String providerUserId) {
+		return getShard(userId).removeUserConnection(userId, providerId,
+				providerUserId);
+	}
+
+	@Override
+	public int removeUserConnections(String userId, String providerId) {
+		return getShard(userId).removeUserConnections(userId, providerId);
+	}
+
+	@Override
+	public UserConnection getUserConnection(String userId, String providerId,
+			String providerUserId) {
+		return getShard(userId).getUserConnection(userId, providerId,
+				providerUserId);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			String providerId) {
+		return getShard(userId).getAllUserConnections(userId, providerId);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId) {
+		return getShard(userId).getAllUserConnections(userId);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(String userId,
+			MultiValueMap<String, String> providerUsers) {
+		return getShard(userId).getAllUserConnections(userId, providerUsers);
+	}
+
+	@Override
+	public List<UserConnection> getAllUserConnections(
+			Collection<String> userIds) {
+		final Map<RooTemplate, List<String>> userIdsByShard = new LinkedHashMap<RooTemplate, List<String>>();
+		for (String userId : new LinkedHashSet<String>(userIds)) {
+			RooTemplate shard = getShard(userId);
+			List<String> shardUserIds = userIdsByShard.get(shard);
+			if (shardUserIds == null) {
+				shardUserIds = new ArrayList<String>();
+				userIdsByShard.put(shard, shardUserIds);
+			}
+			shardUserIds.add(userId);
+		}
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (List<UserConnection> shardConnections : executeOnShards(
+				userIdsByShard.keySet(),
+				new ShardOperation<List<UserConnection>>() {
+					public List<UserConnection> execute(RooTemplate shard) {
+						return shard.getAllUserConnections(userIdsByShard
+								.get(shard));
+					}
+				})) {
+			userConnections.addAll(shardConnections);
+		}
+		return userConnections;
+	}
+
+	@Override
+	public int getRank(String userId, String providerId) {
+		return getShard(userId).getRank(userId, providerId);
+	}
+
+	@Override
+	public List<UserConnection> getPrimaryUserConnections(String userId,
+			String providerId) {
+		return getShard(userId).getPrimaryUserConnections(userId, providerId);
+	}
+
+	@Override
+	public UserConnection getPrimaryUserConnection(String userId,
+			String providerId) {
+		return getShard(userId).getPrimaryUserConnection(userId, providerId);
+	}
+
+	/**
+	 * Returns the connections to the provider user from every shard, in rank
+	 * order.
+	 */
+	@Override
+	public List<UserConnection> getUserConnections(final String providerId,
+			final String providerUserId) {
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (List<UserConnection> shardConnections : executeOnShards(shards,
+				new ShardOperation<List<UserConnection>>() {
+					public List<UserConnection> execute(RooTemplate shard) {
+						return shard.getUserConnections(providerId,
+								providerUserId);
+					}
+				})) {
+			userConnections.addAll(shardConnections);
+		}
+		Collections.sort(userConnections, new Comparator<UserConnection>() {
+			public int compare(UserConnection first, UserConnection second) {
+				return first.getRank() < second.getRank() ? -1 : (first
+						.getRank() == second.getRank() ? 0 : 1);
+			}
+		});
+		return userConnections;
+	}
+
+	@Override
+	public Set<String> findUsersConnectedTo(final String providerId,
+			final Set<String> providerUserIds) {
+		Set<String> userIds = new HashSet<String>();
+		for (Set<String> shardUserIds : executeOnShards(shards,
+				new ShardOperation<Set<String>>() {
+					public Set<String> execute(RooTemplate shard) {
+						return shard.findUsersConnectedTo(providerId,
+								providerUserIds);
+					}
+				})) {
+			userIds.addAll(shardUserIds);
+		}
+		return userIds;
+	}
+
+	/**
+	 * Merges the connections following the given id on every shard, in order
+	 * of id and then of shard. As a page can only be followed on from an id,
+	 * it is extended beyond maxResults by the connections of other shards
+	 * sharing the id of its last connection, at most one per shard, so that
+	 * none of them is skipped by the next page.
+	 */
+	@Override
+	public List<UserConnection> getUserConnectionsAfter(final Long afterId,
+			final int maxResults) {
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (List<UserConnection> shardConnections : executeOnShards(shards,
+				new ShardOperation<List<UserConnection>>() {
+					public List<UserConnection> execute(RooTemplate shard) {
+						return shard.getUserConnectionsAfter(afterId,
+								maxResults);
+					}
+				})) {
+			userConnections.addAll(shardConnections);
+		}
+		// The sort is stable, keeping connections sharing an id in shard order
+		Collections.sort(userConnections, new Comparator<UserConnection>() {
+			public int compare(UserConnection first, UserConnection second) {
+				return first.getId().compareTo(second.getId());
+			}
+		});
+		if (userConnections.size() <= maxResults) {
+			return userConnections;
+		}
+		if (maxResults < 1) {
+			return new ArrayList<UserConnection>(0);
+		}
+		Long lastId = userConnections.get(maxResults - 1).getId();
+		int pageSize = maxResults;
+		while (pageSize < userConnections.size()
+				&& userConnections.get(pageSize).getId().equals(lastId)) {
+			pageSize++;
+		}
+		return new ArrayList<UserConnection>(userConnections.subList(0,
+				pageSize));
+	}
+
+	/**
+	 * Merges the connections expiring first on every shard. Connections of
+	 * different shards with the same expire time and id are ordered by shard:
+	 * the page following such a connection includes those of later shards.
+	 */
+	@Override
+	public List<UserConnection> getUserConnectionsExpiringBefore(
+			final String providerId, final long expireTime,
+			final UserConnection after, final int maxResults) {
+		final int afterShard = after == null ? -1 : shards.indexOf(getShard(after
+				.getUserId()));
+		// Later shards also return connections sharing the expire time and id
+		// of the last connection, which precede them in the merged order
+		final UserConnection laterShardsAfter = after == null ? null
+				: previous(after);
+		List<UserConnection> userConnections = new ArrayList<UserConnection>();
+		for (List<UserConnection> shardConnections : executeOnShards(shards,
+				new ShardOperation<List<UserConnection>>() {
+					public List<UserConnection> execute(RooTemplate shard) {
+						return shard.getUserConnectionsExpiringBefore(
+								providerId, expireTime,
+								shards.indexOf(shard) > afterShard ? laterShardsAfter
+										: after, maxResults);
+					}
+				})) {
+			userConnections.addAll(shardConnections);
+		}
+		// The sort is stable, keeping ties in shard order
+		Collections.sort(userConnections, new Comparator<UserConnection>() {
+			public int compare(UserConnection first, UserConnection second) {
+				int comparison = first.getExpireTime().compareTo(
+						second.getExpireTime());
+				return comparison != 0 ? comparison : first.getId().compareTo(
+						second.getId());
+			}
+		});
+		return userConnections.size() > maxResults ? new ArrayList<UserConnection>(
+				userConnections.subList(0, maxResults)) : userConnections;
+	}
+
+	/**
+	 * Returns a copy of the connection with the preceding id, from which
+	 * keyset paging includes connections with the connection's own id.
+	 */
+	private static UserConnection previous(UserConnection userConnection) {
+		UserConnection previous = userConnection.copy();
+		previous.setId(userConnection.getId() - 1);
+		return previous;
+	}
+
+	private Map<RooTemplate, List<UserConnection>> groupByShard(
+			List<UserConnection> userConnections) {
+		Map<RooTemplate, List<UserConnection>> userConnectionsByShard = new LinkedHashMap<RooTemplate, List<UserConnection>>();
+		for (UserConnection userConnection : userConnections) {
+			RooTemplate shard = getShard(userConnection.getUserId());
+			List<UserConnection> shardConnections = userConnectionsByShard
+					.get(shard);
+			if (shardConnections == null) {
+				shardConnections = new ArrayList<UserConnection>();
+				userConnectionsByShard.put(shard, shardConnections);
+			}
+			shardConnections.add(userConnection);
+		}
+		return userConnectionsByShard;
+	}
+
+	/**
+	 * Executes the operation on each of the given shards, returning the
+	 * results in the order of the shards.
+	 */
+	private <T> List<T> executeOnShards(Collection<RooTemplate> targetShards,
+			final ShardOperation<T> operation) {
+		List<T> results = new ArrayList<T>(targetShards.size());
+		if (executor == null || targetShards.size() < 2
+				|| TransactionSynchronizationManager.isActualTransactionActive()) {
+			for (RooTemplate shard : targetShards) {
+				results.add(operation.execute(shard));
+			}
+			return results;
+		}
+		List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(
+				targetShards.size());
+		for (final RooTemplate shard : targetShards) {
+			FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+				public T call() {
+					return operation.execute(shard);
+				}
+			});
+			tasks.add(task);
+			executor.execute(task);
+		}
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(shardTimeoutMillis);
+		try {
+			for (FutureTask<T> task : tasks) {
+				results.add(getResult(task, deadline));
+			}
+		} finally {
+			for (FutureTask<T> task : tasks) {
+				task.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	private <T> T getResult(FutureTask<T> task, long deadline) {
+		try {
+			if (shardTimeoutMillis <= 0) {
+				return task.get();
+			}
+			return task.get(Math.max(0, deadline - System.nanoTime()),
+					TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new QueryTimeoutException("Shard did not respond within "
+					+ shardTimeoutMillis + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while waiting for shard results", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private interface ShardOperation<T> {
+
+		T execute(RooTemplate shard);
+
+	}
+
+}
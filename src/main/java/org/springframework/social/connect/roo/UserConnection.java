@@ -15,23 +15,49 @@
  */
 package org.springframework.social.connect.roo;
 
+import java.util.Collection;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Query;
+import javax.persistence.Table;
+import javax.persistence.TypedQuery;
+import javax.persistence.UniqueConstraint;
+
 import org.springframework.roo.addon.javabean.RooJavaBean;
 import org.springframework.roo.addon.jpa.activerecord.RooJpaActiveRecord;
 import org.springframework.roo.addon.tostring.RooToString;
 
 @RooJavaBean
 @RooToString
-@RooJpaActiveRecord(finders = { "findUserConnectionsByUserId",
-		"findUserConnectionsByUserIdAndProviderId",
-		"findUserConnectionsByUserIdAndProviderIdAndRank",
-		"findUserConnectionsByProviderIdAndProviderUserId",
-		"findUserConnectionByUserIdAndProviderIdAndProviderUserId",
-		"findMaxRankByUserIdAndProviderId",
-		"findUserIdsByProviderIdAndProviderUserIds" })
+@RooJpaActiveRecord
+@NamedQueries({
+		@NamedQuery(name = "UserConnection.findUserConnectionsByUserId", query = "SELECT o FROM UserConnection AS o WHERE o.userId = :userId order by o.rank"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByUserIds", query = "SELECT o FROM UserConnection AS o WHERE o.userId in :userIds order by o.userId, o.rank"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByUserIdAndProviderId", query = "SELECT o FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId order by o.rank"),
+		@NamedQuery(name = "UserConnection.findMaxRankByUserIdAndProviderId", query = "SELECT max(o.rank) FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId"),
+		@NamedQuery(name = "UserConnection.findRankByUserIdAndProviderIdAndProviderUserId", query = "SELECT o.rank FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId and o.providerUserId = :providerUserId"),
+		@NamedQuery(name = "UserConnection.negateRanksByUserIdAndProviderIdAndRankGreaterThan", query = "UPDATE UserConnection AS o SET o.rank = -o.rank WHERE o.userId = :userId and o.providerId = :providerId and o.rank > :rank"),
+		@NamedQuery(name = "UserConnection.decrementNegatedRanksByUserIdAndProviderId", query = "UPDATE UserConnection AS o SET o.rank = -o.rank - 1, o.version = coalesce(o.version, 0) + 1 WHERE o.userId = :userId and o.providerId = :providerId and o.rank < 0"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByUserIdAndProviderIdAndRank", query = "SELECT o FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId and o.rank = :rank order by o.rank"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByProviderIdAndProviderUserId", query = "SELECT o FROM UserConnection AS o WHERE o.providerId = :providerId and o.providerUserId = :providerUserId order by o.rank"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByUserIdAndProviderIdAndProviderUserIds", query = "SELECT o FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId and o.providerUserId in :providerUserIds order by o.rank"),
+		@NamedQuery(name = "UserConnection.findUserIdsByProviderIdAndProviderUserIds", query = "SELECT distinct(o.userId) FROM UserConnection AS o WHERE o.providerId = :providerId and o.providerUserId in :providerUserIds"),
+		@NamedQuery(name = "UserConnection.findUserConnectionByUserIdAndProviderIdAndProviderUserId", query = "SELECT o FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId and o.providerUserId = :providerUserId"),
+		@NamedQuery(name = "UserConnection.deleteUserConnectionsByUserIdAndProviderId", query = "DELETE FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId"),
+		@NamedQuery(name = "UserConnection.deleteUserConnectionByUserIdAndProviderIdAndProviderUserId", query = "DELETE FROM UserConnection AS o WHERE o.userId = :userId and o.providerId = :providerId and o.providerUserId = :providerUserId"),
+		@NamedQuery(name = "UserConnection.updateUserConnectionByUserIdAndProviderIdAndProviderUserId", query = "UPDATE UserConnection AS o SET o.displayName = :displayName, o.profileUrl = :profileUrl, o.imageUrl = :imageUrl, o.accessToken = :accessToken, o.secret = :secret, o.refreshToken = :refreshToken, o.expireTime = :expireTime, o.version = coalesce(o.version, 0) + 1 WHERE o.userId = :userId and o.providerId = :providerId and o.providerUserId = :providerUserId and coalesce(o.version, 0) = :version"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByIdGreaterThan", query = "SELECT o FROM UserConnection AS o WHERE o.id > :id order by o.id"),
+		@NamedQuery(name = "UserConnection.findUserConnectionsByProviderIdAndExpireTimeLessThan", query = "SELECT o FROM UserConnection AS o WHERE o.providerId = :providerId and o.expireTime < :expireTime and (o.expireTime > :afterExpireTime or (o.expireTime = :afterExpireTime and o.id > :afterId)) order by o.expireTime, o.id") })
+@Table(name = "user_connection", uniqueConstraints = {
+		@UniqueConstraint(columnNames = { "userId", "providerId",
+				"providerUserId" }),
+		@UniqueConstraint(columnNames = { "userId", "providerId", "rank" }) })
 /**
  * @author Michael Lavelle
  */
-public class UserConnection {
+public class UserConnection implements Cloneable {
 
 	private String accessToken;
 	private String displayName;
@@ -44,4 +70,352 @@ public class UserConnection {
 	private String refreshToken;
 	private String secret;
 	private String userId;
+
+	private static volatile EntityManager sharedEntityManager;
+
+	/**
+	 * Returns the injected EntityManager, a thread-safe shared proxy, resolved
+	 * by configuring a new UserConnection on first use only rather than on
+	 * every query. It is resolved again once its EntityManagerFactory is
+	 * closed.
+	 * <p>
+	 * As a result, when several application contexts configure UserConnection
+	 * in the same class loader, every context uses the EntityManager of the
+	 * context first resolving it until that context's EntityManagerFactory
+	 * is closed, rather than that of the context most recently configured.
+	 * Such contexts should be loaded in class loaders of their own.
+	 */
+	public static final EntityManager entityManager() {
+		EntityManager em = sharedEntityManager;
+		if (em == null || !em.getEntityManagerFactory().isOpen()) {
+			em = new UserConnection().entityManager;
+			if (em == null)
+				throw new IllegalStateException(
+						"Entity manager has not been injected (is the Spring Aspects JAR configured as an AJC/AJDT aspects library?)");
+			sharedEntityManager = em;
+		}
+		return em;
+	}
+
+	/**
+	 * Returns a copy of this connection, detached from any persistence
+	 * context. The copy is made by cloning, so no constructor runs and it
+	 * costs far less than configuring a new UserConnection.
+	 */
+	public UserConnection copy() {
+		try {
+			return (UserConnection) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByUserId(
+			String userId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByUserId",
+				UserConnection.class);
+		q.setParameter("userId", userId);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByUserIds(
+			Collection<String> userIds) {
+		if (userIds == null)
+			throw new IllegalArgumentException(
+					"The userIds argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByUserIds",
+				UserConnection.class);
+		q.setParameter("userIds", userIds);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByUserIdAndProviderId(
+			String userId, String providerId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByUserIdAndProviderId",
+				UserConnection.class);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		return q;
+	}
+
+	public static TypedQuery<Integer> findMaxRankByUserIdAndProviderId(
+			String userId, String providerId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		TypedQuery<Integer> q = entityManager().createNamedQuery(
+				"UserConnection.findMaxRankByUserIdAndProviderId",
+				Integer.class);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		return q;
+	}
+
+	public static TypedQuery<Integer> findRankByUserIdAndProviderIdAndProviderUserId(
+			String userId, String providerId, String providerUserId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserId == null)
+			throw new IllegalArgumentException(
+					"The providerUserId argument is required");
+		TypedQuery<Integer> q = entityManager().createNamedQuery(
+				"UserConnection.findRankByUserIdAndProviderIdAndProviderUserId",
+				Integer.class);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserId", providerUserId);
+		return q;
+	}
+
+	/**
+	 * First of the two updates moving up the ranks after a removed connection,
+	 * negating them so that the second update,
+	 * {@link #decrementNegatedRanksByUserIdAndProviderId(String, String)},
+	 * never sets a rank still held by another row: the unique rank index is
+	 * checked row by row on databases such as MySQL and PostgreSQL, so a
+	 * single "rank = rank - 1" update fails on them.
+	 */
+	public static Query negateRanksByUserIdAndProviderIdAndRankGreaterThan(
+			String userId, String providerId, int rank) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		Query q = entityManager().createNamedQuery(
+				"UserConnection.negateRanksByUserIdAndProviderIdAndRankGreaterThan");
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("rank", rank);
+		return q;
+	}
+
+	public static Query decrementNegatedRanksByUserIdAndProviderId(
+			String userId, String providerId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		Query q = entityManager().createNamedQuery(
+				"UserConnection.decrementNegatedRanksByUserIdAndProviderId");
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByUserIdAndProviderIdAndRank(
+			String userId, String providerId, int rank) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByUserIdAndProviderIdAndRank",
+				UserConnection.class);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("rank", rank);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByProviderIdAndProviderUserId(
+			String providerId, String providerUserId) {
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserId == null)
+			throw new IllegalArgumentException(
+					"The providerUserId argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByProviderIdAndProviderUserId",
+				UserConnection.class);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserId", providerUserId);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByUserIdAndProviderIdAndProviderUserIds(
+			String userId, String providerId,
+			Collection<String> providerUserIds) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserIds == null)
+			throw new IllegalArgumentException(
+					"The providerUserIds argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByUserIdAndProviderIdAndProviderUserIds",
+				UserConnection.class);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserIds", providerUserIds);
+		return q;
+	}
+
+	public static TypedQuery<String> findUserIdsByProviderIdAndProviderUserIds(
+			String providerId, Collection<String> providerUserIds) {
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserIds == null)
+			throw new IllegalArgumentException(
+					"The providerUserIds argument is required");
+		TypedQuery<String> q = entityManager().createNamedQuery(
+				"UserConnection.findUserIdsByProviderIdAndProviderUserIds",
+				String.class);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserIds", providerUserIds);
+		return q;
+	}
+
+	public static UserConnection findUserConnectionByUserIdAndProviderIdAndProviderUserId(
+			String userId, String providerId, String providerUserId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserId == null)
+			throw new IllegalArgumentException(
+					"The providerUserId argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionByUserIdAndProviderIdAndProviderUserId",
+				UserConnection.class);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserId", providerUserId);
+		// Spring Social ensures that only one entry exists for a given
+		// userId,ProviderId and providerUserId
+		// So we return the single result here - we may want to handle this
+		// differently
+		return q.getSingleResult();
+	}
+
+	public static Query deleteUserConnectionsByUserIdAndProviderId(
+			String userId, String providerId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		Query q = entityManager().createNamedQuery(
+				"UserConnection.deleteUserConnectionsByUserIdAndProviderId");
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		return q;
+	}
+
+	public static Query deleteUserConnectionByUserIdAndProviderIdAndProviderUserId(
+			String userId, String providerId, String providerUserId) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserId == null)
+			throw new IllegalArgumentException(
+					"The providerUserId argument is required");
+		Query q = entityManager().createNamedQuery(
+				"UserConnection.deleteUserConnectionByUserIdAndProviderIdAndProviderUserId");
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserId", providerUserId);
+		return q;
+	}
+
+	public static Query updateUserConnectionByUserIdAndProviderIdAndProviderUserId(
+			String userId, String providerId, String providerUserId,
+			String displayName, String profileUrl, String imageUrl,
+			String accessToken, String secret, String refreshToken,
+			Long expireTime, Integer version) {
+		if (userId == null)
+			throw new IllegalArgumentException(
+					"The userId argument is required");
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (providerUserId == null)
+			throw new IllegalArgumentException(
+					"The providerUserId argument is required");
+		Query q = entityManager().createNamedQuery(
+				"UserConnection.updateUserConnectionByUserIdAndProviderIdAndProviderUserId");
+		q.setParameter("displayName", displayName);
+		q.setParameter("profileUrl", profileUrl);
+		q.setParameter("imageUrl", imageUrl);
+		q.setParameter("accessToken", accessToken);
+		q.setParameter("secret", secret);
+		q.setParameter("refreshToken", refreshToken);
+		q.setParameter("expireTime", expireTime);
+		q.setParameter("userId", userId);
+		q.setParameter("providerId", providerId);
+		q.setParameter("providerUserId", providerUserId);
+		q.setParameter("version", version == null ? 0 : version);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByIdGreaterThan(
+			Long id) {
+		if (id == null)
+			throw new IllegalArgumentException("The id argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByIdGreaterThan",
+				UserConnection.class);
+		q.setParameter("id", id);
+		return q;
+	}
+
+	public static TypedQuery<UserConnection> findUserConnectionsByProviderIdAndExpireTimeLessThan(
+			String providerId, Long expireTime, Long afterExpireTime,
+			Long afterId) {
+		if (providerId == null)
+			throw new IllegalArgumentException(
+					"The providerId argument is required");
+		if (expireTime == null)
+			throw new IllegalArgumentException(
+					"The expireTime argument is required");
+		if (afterExpireTime == null)
+			throw new IllegalArgumentException(
+					"The afterExpireTime argument is required");
+		if (afterId == null)
+			throw new IllegalArgumentException(
+					"The afterId argument is required");
+		TypedQuery<UserConnection> q = entityManager().createNamedQuery(
+				"UserConnection.findUserConnectionsByProviderIdAndExpireTimeLessThan",
+				UserConnection.class);
+		q.setParameter("providerId", providerId);
+		q.setParameter("expireTime", expireTime);
+		q.setParameter("afterExpireTime", afterExpireTime);
+		q.setParameter("afterId", afterId);
+		return q;
+	}
 }
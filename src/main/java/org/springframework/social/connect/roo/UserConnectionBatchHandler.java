@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.util.List;
+
+/**
+ * Callback receiving each batch of connections streamed by
+ * {@link UserConnectionExporter#export(UserConnectionBatchHandler)}.
+ * 
+ * @author Michael Lavelle
+ */
+public interface UserConnectionBatchHandler {
+
+	/**
+	 * Handles a batch of connections, in id order. The connections are
+	 * detached, and the list is not retained once this method returns.
+	 */
+	void handleBatch(List<UserConnection> userConnections);
+
+}
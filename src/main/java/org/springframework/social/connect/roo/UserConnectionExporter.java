@@ -0,0 +1,281 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.roo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams every connection out of a RooTemplate in batches, and bulk imports
+ * connections into one, for backups, analytics and migrations. Connections
+ * are read in id order a batch at a time, each batch continuing after the
+ * last id of the previous batch, so every batch costs the same regardless of
+ * table size and no more than a batch of connections is held in memory.
+ * <p>
+ * {@link #exportTo(Writer)} writes a line per connection of tab separated
+ * columns: user id, provider id, provider user id, rank, display name,
+ * profile url, image url, access token, secret, refresh token and expire
+ * time. Null values are written as \N, and backslashes, tabs, carriage
+ * returns and newlines within values are escaped with a backslash. Tokens
+ * are written as stored, ie. encrypted with the repository's TextEncryptor,
+ * and ids and versions are not written. {@link #importFrom(Reader)} reads the
+ * same format.
+ * 
+ * @author Michael Lavelle
+ */
+public class UserConnectionExporter {
+
+	private static final String NULL = "\\N";
+
+	private static final int COLUMN_COUNT = 11;
+
+	private final RooTemplate rooTemplate;
+
+	private int batchSize = 1000;
+
+	public UserConnectionExporter(RooTemplate rooTemplate) {
+		this.rooTemplate = rooTemplate;
+	}
+
+	/**
+	 * Number of connections read or inserted at a time. Defaults to 1000.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"batchSize must be greater than zero");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Passes every connection to the handler, a batch at a time, in id order.
+	 * 
+	 * @return the number of connections exported
+	 */
+	public long export(UserConnectionBatchHandler handler) {
+		long count = 0;
+		List<UserConnection> batch = rooTemplate.getUserConnectionsAfter(null,
+				batchSize);
+		while (!batch.isEmpty()) {
+			handler.handleBatch(batch);
+			count += batch.size();
+			batch = nextBatch(batch);
+		}
+		return count;
+	}
+
+	/**
+	 * Passes the connections to the provider which expire before the given
+	 * time to the handler, a batch at a time, in order of expire time, eg. for
+	 * a scheduler refreshing tokens before they expire. Connections refreshed
+	 * by the handler to expire after the given time are not passed again.
+	 * 
+	 * @return the number of connections exported
+	 */
+	public long exportExpiringBefore(String providerId, long expireTime,
+			UserConnectionBatchHandler handler) {
+		long count = 0;
+		List<UserConnection> batch = rooTemplate
+				.getUserConnectionsExpiringBefore(providerId, expireTime, null,
+						batchSize);
+		while (!batch.isEmpty()) {
+			handler.handleBatch(batch);
+			count += batch.size();
+			if (batch.size() < batchSize) {
+				break;
+			}
+			batch = rooTemplate.getUserConnectionsExpiringBefore(providerId,
+					expireTime, batch.get(batch.size() - 1), batchSize);
+		}
+		return count;
+	}
+
+	/**
+	 * Writes every connection to the writer, a line per connection. The
+	 * writer is neither buffered nor closed by this method.
+	 * 
+	 * @return the number of connections exported
+	 */
+	public long exportTo(Writer writer) throws IOException {
+		long count = 0;
+		StringBuilder line = new StringBuilder(256);
+		List<UserConnection> batch = rooTemplate.getUserConnectionsAfter(null,
+				batchSize);
+		while (!batch.isEmpty()) {
+			for (UserConnection userConnection : batch) {
+				line.setLength(0);
+				formatLine(userConnection, line);
+				writer.write(line.toString());
+			}
+			count += batch.size();
+			batch = nextBatch(batch);
+		}
+		writer.flush();
+		return count;
+	}
+
+	/**
+	 * Inserts the connections read from the reader, written in the format of
+	 * {@link #exportTo(Writer)}, passing each batch to
+	 * {@link RooTemplate#createUserConnections(List)}. Blank lines are
+	 * skipped. If a batch fails, the batches inserted before it remain
+	 * inserted.
+	 * 
+	 * @return the number of connections imported
+	 * @throws IllegalArgumentException
+	 *             if a line is not in the export format
+	 */
+	public long importFrom(Reader reader) throws IOException {
+		BufferedReader lineReader = reader instanceof BufferedReader ? (BufferedReader) reader
+				: new BufferedReader(reader);
+		long count = 0;
+		long lineNumber = 0;
+		List<UserConnection> batch = new ArrayList<UserConnection>(batchSize);
+		String line;
+		while ((line = lineReader.readLine()) != null) {
+			lineNumber++;
+			if (line.length() == 0) {
+				continue;
+			}
+			batch.add(parseLine(line, lineNumber));
+			if (batch.size() == batchSize) {
+				rooTemplate.createUserConnections(batch);
+				count += batch.size();
+				batch = new ArrayList<UserConnection>(batchSize);
+			}
+		}
+		if (!batch.isEmpty()) {
+			rooTemplate.createUserConnections(batch);
+			count += batch.size();
+		}
+		return count;
+	}
+
+	private List<UserConnection> nextBatch(List<UserConnection> batch) {
+		if (batch.size() < batchSize) {
+			return new ArrayList<UserConnection>(0);
+		}
+		return rooTemplate.getUserConnectionsAfter(
+				batch.get(batch.size() - 1).getId(), batchSize);
+	}
+
+	private static void formatLine(UserConnection userConnection, StringBuilder line) {
+		appendValue(line, userConnection.getUserId()).append('\t');
+		appendValue(line, userConnection.getProviderId()).append('\t');
+		appendValue(line, userConnection.getProviderUserId()).append('\t');
+		line.append(userConnection.getRank()).append('\t');
+		appendValue(line, userConnection.getDisplayName()).append('\t');
+		appendValue(line, userConnection.getProfileUrl()).append('\t');
+		appendValue(line, userConnection.getImageUrl()).append('\t');
+		appendValue(line, userConnection.getAccessToken()).append('\t');
+		appendValue(line, userConnection.getSecret()).append('\t');
+		appendValue(line, userConnection.getRefreshToken()).append('\t');
+		Long expireTime = userConnection.getExpireTime();
+		line.append(expireTime == null ? NULL : expireTime.toString()).append(
+				'\n');
+	}
+
+	private static UserConnection parseLine(String line, long lineNumber) {
+		String[] values = line.split("\t", -1);
+		if (values.length != COLUMN_COUNT) {
+			throw new IllegalArgumentException("Line " + lineNumber + " has "
+					+ values.length + " columns instead of " + COLUMN_COUNT);
+		}
+		try {
+			UserConnection userConnection = new UserConnection();
+			userConnection.setUserId(parseValue(values[0]));
+			userConnection.setProviderId(parseValue(values[1]));
+			userConnection.setProviderUserId(parseValue(values[2]));
+			userConnection.setRank(Integer.parseInt(values[3]));
+			userConnection.setDisplayName(parseValue(values[4]));
+			userConnection.setProfileUrl(parseValue(values[5]));
+			userConnection.setImageUrl(parseValue(values[6]));
+			userConnection.setAccessToken(parseValue(values[7]));
+			userConnection.setSecret(parseValue(values[8]));
+			userConnection.setRefreshToken(parseValue(values[9]));
+			userConnection.setExpireTime(NULL.equals(values[10]) ? null : Long
+					.valueOf(values[10]));
+			return userConnection;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Line " + lineNumber
+					+ " has an invalid rank or expire time", e);
+		}
+	}
+
+	private static StringBuilder appendValue(StringBuilder line, String value) {
+		if (value == null) {
+			return line.append(NULL);
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			default:
+				line.append(c);
+			}
+		}
+		return line;
+	}
+
+	private static String parseValue(String value) {
+		if (NULL.equals(value)) {
+			return null;
+		}
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		StringBuilder parsed = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				c = value.charAt(++i);
+				switch (c) {
+				case 't':
+					parsed.append('\t');
+					break;
+				case 'r':
+					parsed.append('\r');
+					break;
+				case 'n':
+					parsed.append('\n');
+					break;
+				default:
+					parsed.append(c);
+				}
+			} else {
+				parsed.append(c);
+			}
+		}
+		return parsed.toString();
+	}
+
+}
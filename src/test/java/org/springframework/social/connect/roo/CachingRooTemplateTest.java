@@ -0,0 +1,239 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class CachingRooTemplateTest {
+
+	@Autowired
+	private RooTemplate rooTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	private CachingRooTemplate cachingRooTemplate;
+
+	@Before
+	public void setUp() {
+		DatabasePopulatorUtils.execute(resourceDatabasePopulator, dataSource);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		cachingRooTemplate = new CachingRooTemplate(rooTemplate, 100, 0);
+	}
+
+	@After
+	public void tearDown() {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@Test
+	public void repeatedReadsAreServedFromCache() {
+		insertConnection("1", "facebook", "a", 1);
+		insertConnection("1", "facebook", "b", 2);
+
+		List<UserConnection> userConnections = cachingRooTemplate
+				.getAllUserConnections("1");
+		assertEquals(2, userConnections.size());
+		List<UserConnection> cachedUserConnections = cachingRooTemplate
+				.getAllUserConnections("1");
+		assertEquals(2, cachedUserConnections.size());
+		assertNotSame(userConnections.get(0), cachedUserConnections.get(0));
+		assertEquals(1, cachingRooTemplate.getMissCount());
+		assertEquals(1, cachingRooTemplate.getHitCount());
+
+		assertEquals(2,
+				cachingRooTemplate.getAllUserConnections("1", "facebook")
+						.size());
+		assertNotNull(cachingRooTemplate.getUserConnection("1", "facebook",
+				"b"));
+		assertNull(cachingRooTemplate.getUserConnection("1", "facebook", "c"));
+		assertEquals("a",
+				cachingRooTemplate.getPrimaryUserConnections("1", "facebook")
+						.get(0).getProviderUserId());
+		assertEquals(2, cachingRooTemplate.getMissCount());
+		assertEquals(4, cachingRooTemplate.getHitCount());
+	}
+
+	@Test
+	public void writesInvalidateCachedEntries() {
+		insertConnection("1", "facebook", "a", 1);
+		assertEquals(1, cachingRooTemplate.getAllUserConnections("1").size());
+		assertEquals(1,
+				cachingRooTemplate.getAllUserConnections("1", "facebook")
+						.size());
+
+		cachingRooTemplate.createUserConnection("1", "facebook", "b", 2, null,
+				null, null, "accessToken", null, null, null);
+		assertEquals(2, cachingRooTemplate.getAllUserConnections("1").size());
+		assertEquals(2,
+				cachingRooTemplate.getAllUserConnections("1", "facebook")
+						.size());
+
+		cachingRooTemplate.removeUserConnection("1", "facebook", "a");
+		assertEquals(1, cachingRooTemplate.getAllUserConnections("1").size());
+		assertNull(cachingRooTemplate.getUserConnection("1", "facebook", "a"));
+
+		cachingRooTemplate.removeUserConnections("1", "facebook");
+		assertEquals(0, cachingRooTemplate.getAllUserConnections("1").size());
+		assertEquals(0,
+				cachingRooTemplate.getAllUserConnections("1", "facebook")
+						.size());
+	}
+
+	@Test
+	public void changesToReturnedConnectionsAreNotCached() {
+		insertConnection("1", "facebook", "a", 1);
+
+		cachingRooTemplate.getUserConnection("1", "facebook", "a")
+				.setAccessToken("changed");
+		cachingRooTemplate.getAllUserConnections("1", "facebook").get(0)
+				.setAccessToken("changed");
+		assertEquals("accessToken",
+				cachingRooTemplate.getUserConnection("1", "facebook", "a")
+						.getAccessToken());
+	}
+
+	@Test
+	public void loadRacingAWriteIsNotCached() {
+		insertConnection("1", "facebook", "a", 1);
+		// The write lands after the delegate has read the user's connections
+		// but before the caching template stores them
+		RooTemplate racingTemplate = (RooTemplate) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { RooTemplate.class }, new InvocationHandler() {
+					private boolean raced;
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						Object result;
+						try {
+							result = method.invoke(rooTemplate, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						if (method.getName().equals("getAllUserConnections")
+								&& !raced) {
+							raced = true;
+							cachingRooTemplate.createUserConnection("1",
+									"facebook", "b", 2, null, null, null,
+									"accessToken", null, null, null);
+						}
+						return result;
+					}
+				});
+		cachingRooTemplate = new CachingRooTemplate(racingTemplate, 100, 0);
+
+		assertEquals(1, cachingRooTemplate.getAllUserConnections("1").size());
+		assertEquals(2, cachingRooTemplate.getAllUserConnections("1").size());
+	}
+
+	@Test
+	public void multiUserReadsOnlyQueryUncachedUsers() {
+		insertConnection("1", "facebook", "a", 1);
+		insertConnection("2", "facebook", "b", 1);
+		insertConnection("2", "twitter", "c", 1);
+		cachingRooTemplate.getAllUserConnections("1");
+
+		List<UserConnection> userConnections = cachingRooTemplate
+				.getAllUserConnections(Arrays.asList("1", "2", "3"));
+		assertEquals(3, userConnections.size());
+		assertEquals("a", userConnections.get(0).getProviderUserId());
+		assertEquals(3, cachingRooTemplate.getMissCount());
+		assertEquals(1, cachingRooTemplate.getHitCount());
+
+		assertEquals(2, cachingRooTemplate.getAllUserConnections("2").size());
+		assertEquals(0, cachingRooTemplate.getAllUserConnections("3").size());
+		assertEquals(3, cachingRooTemplate.getMissCount());
+		assertEquals(3, cachingRooTemplate.getHitCount());
+	}
+
+	@Test
+	public void entriesAreEvictedBySizeAndAge() {
+		insertConnection("1", "facebook", "a", 1);
+		insertConnection("2", "facebook", "b", 1);
+
+		CachingRooTemplate sizeBoundTemplate = new CachingRooTemplate(
+				rooTemplate, 1, 0);
+		sizeBoundTemplate.getAllUserConnections("1");
+		sizeBoundTemplate.getAllUserConnections("2");
+		sizeBoundTemplate.getAllUserConnections("1");
+		assertEquals(3, sizeBoundTemplate.getMissCount());
+		assertEquals(2, sizeBoundTemplate.getEvictionCount());
+
+		CachingRooTemplate timeBoundTemplate = new CachingRooTemplate(
+				rooTemplate, 100, 1);
+		timeBoundTemplate.getAllUserConnections("1");
+		sleep(10);
+		timeBoundTemplate.getAllUserConnections("1");
+		assertEquals(2, timeBoundTemplate.getMissCount());
+		assertEquals(1, timeBoundTemplate.getEvictionCount());
+	}
+
+	@Test
+	public void reverseLookupCacheFollowsConnectionChanges() {
+		cachingRooTemplate.setReverseLookupCacheEnabled(true);
+		insertConnection("1", "facebook", "a", 1);
+
+		assertEquals(1, cachingRooTemplate.getUserConnections("facebook", "a")
+				.size());
+		assertEquals(1, cachingRooTemplate.getUserConnections("facebook", "a")
+				.size());
+		assertEquals(1, cachingRooTemplate.getHitCount());
+
+		cachingRooTemplate.createUserConnection("2", "facebook", "a", 1, null,
+				null, null, "accessToken", null, null, null);
+		assertEquals(2, cachingRooTemplate.getUserConnections("facebook", "a")
+				.size());
+
+		cachingRooTemplate.removeUserConnections("1", "facebook");
+		List<UserConnection> userConnections = cachingRooTemplate
+				.getUserConnections("facebook", "a");
+		assertEquals(1, userConnections.size());
+		assertEquals("2", userConnections.get(0).getUserId());
+
+		cachingRooTemplate.removeUserConnection("2", "facebook", "a");
+		assertEquals(0, cachingRooTemplate.getUserConnections("facebook", "a")
+				.size());
+	}
+
+	private void insertConnection(String userId, String providerId,
+			String providerUserId, int rank) {
+		rooTemplate.createUserConnection(userId, providerId, providerUserId,
+				rank, null, null, null, "accessToken", null, null, null);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class HistogramMetricsSinkTest {
+
+	@Test
+	public void recordsCountsAndPercentiles() {
+		HistogramMetricsSink metricsSink = new HistogramMetricsSink();
+		for (int i = 1; i <= 100; i++) {
+			metricsSink.record("op", TimeUnit.MICROSECONDS.toNanos(i), 2,
+					i == 100);
+		}
+
+		OperationMetrics metrics = metricsSink.getOperationMetrics("op");
+		assertEquals(100, metrics.getCount());
+		assertEquals(1, metrics.getFailureCount());
+		assertEquals(200, metrics.getRowCount());
+		assertEquals(5050, metrics.getTotalTimeMicros());
+		assertEquals(100, metrics.getMaxTimeMicros());
+		assertEquals(50.5, metrics.getMeanTimeMicros(), 0.001);
+		// 50 falls in the 32-63 microsecond bucket
+		assertEquals(63, metrics.getMedianTimeMicros());
+		assertEquals(100, metrics.get99thPercentileTimeMicros());
+
+		metrics.reset();
+		assertEquals(0, metrics.getCount());
+		assertEquals(0, metrics.getMedianTimeMicros());
+	}
+
+	@Test
+	public void registersOperationsAsMBeans() throws Exception {
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		HistogramMetricsSink metricsSink = new HistogramMetricsSink();
+		metricsSink.record("before", 1000, 1, false);
+		metricsSink.registerMBeans(mBeanServer);
+		metricsSink.record("after", 1000, 1, false);
+
+		ObjectName before = new ObjectName(HistogramMetricsSink.DOMAIN
+				+ ":type=Operation,name=" + ObjectName.quote("before"));
+		ObjectName after = new ObjectName(HistogramMetricsSink.DOMAIN
+				+ ":type=Operation,name=" + ObjectName.quote("after"));
+		assertEquals(1L, mBeanServer.getAttribute(before, "Count"));
+		assertEquals(1L, mBeanServer.getAttribute(after, "RowCount"));
+
+		metricsSink.unregisterMBeans();
+		assertFalse(mBeanServer.isRegistered(before));
+		assertFalse(mBeanServer.isRegistered(after));
+	}
+
+	@Test
+	public void disabledSinkIsNotTimed() {
+		HistogramMetricsSink metricsSink = new HistogramMetricsSink();
+		metricsSink.setEnabled(false);
+		Instrumentation instrumentation = new Instrumentation(metricsSink);
+		long start = instrumentation.start();
+		instrumentation.success("op", start, 1);
+		assertNull(metricsSink.getOperationMetrics("op"));
+
+		metricsSink.setEnabled(true);
+		start = instrumentation.start();
+		instrumentation.failure("op", start);
+		assertEquals(1, metricsSink.getOperationMetrics("op")
+				.getFailureCount());
+	}
+
+}
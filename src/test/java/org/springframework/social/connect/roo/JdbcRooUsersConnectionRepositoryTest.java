@@ -0,0 +1,64 @@
+package org.springframework.social.connect.roo;
+
+import org.junit.After;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.ConnectionSignUp;
+import org.springframework.social.extension.connect.jdbc.AbstractUsersConnectionRepositoryTest;
+import org.springframework.test.context.ContextConfiguration;
+
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class JdbcRooUsersConnectionRepositoryTest extends
+		AbstractUsersConnectionRepositoryTest<RooUsersConnectionRepository> {
+
+	private EmbeddedDatabase database;
+
+	private JdbcRooTemplate dataAccessor;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	@Override
+	protected Boolean checkIfProviderConnectionsExist(String arg0) {
+		return null;
+	}
+
+	@Override
+	protected RooUsersConnectionRepository createUsersConnectionRepository() {
+		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+		factory.setDatabaseConfigurer(new DataSourceTestConfig.MySqlCompatibleH2DatabaseConfigurer());
+		factory.setDatabasePopulator(resourceDatabasePopulator);
+		database = factory.getDatabase();
+		dataAccessor = new JdbcRooTemplate(database);
+		return new RooUsersConnectionRepository(dataAccessor,
+				connectionFactoryRegistry, Encryptors.noOpText());
+	}
+
+	@After
+	public void tearDown() {
+		if (database != null) {
+			database.shutdown();
+		}
+	}
+
+	@Override
+	protected void insertConnection(String userId, String providerId,
+			String providerUserId, int rank, String displayName,
+			String profileUrl, String imageUrl, String accessToken,
+			String secret, String refreshToken, Long expireTime) {
+		dataAccessor.createUserConnection(userId, providerId, providerUserId,
+				rank, displayName, profileUrl, imageUrl, accessToken, secret,
+				refreshToken, expireTime);
+	}
+
+	@Override
+	protected void setConnectionSignUpOnUsersConnectionRepository(
+			RooUsersConnectionRepository usersConnectionRepository,
+			ConnectionSignUp connectionSignUp) {
+		usersConnectionRepository.setConnectionSignUp(connectionSignUp);
+	}
+
+}
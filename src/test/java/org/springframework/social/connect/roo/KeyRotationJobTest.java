@@ -0,0 +1,174 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class KeyRotationJobTest {
+
+	@Autowired
+	private RooTemplate rooTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	private final TextEncryptor oldTextEncryptor = Encryptors.text(
+			"old password", "5c0744940b5c369b");
+
+	private final KeyVersionedTextEncryptor newTextEncryptor = new KeyVersionedTextEncryptor(
+			"2", Encryptors.text("new password", "5c0744940b5c369b"));
+
+	@Before
+	public void setUp() {
+		newTextEncryptor.setPreviousTextEncryptor(oldTextEncryptor);
+		DatabasePopulatorUtils.execute(resourceDatabasePopulator, dataSource);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@After
+	public void tearDown() {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@Test
+	public void rotatesEveryConnectionInParallelChunks() throws Exception {
+		for (int i = 0; i < 9; i++) {
+			insertConnection(String.valueOf(i), oldTextEncryptor);
+		}
+		insertConnection("rotated", newTextEncryptor);
+		KeyRotationJob job = new KeyRotationJob(dataSource, oldTextEncryptor,
+				newTextEncryptor);
+		job.setChunkSize(3);
+		InMemoryCheckpoint checkpoint = new InMemoryCheckpoint();
+		job.setCheckpoint(checkpoint);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		KeyRotationResult result;
+		try {
+			job.setExecutor(executor);
+			job.setWorkers(3);
+			result = job.run();
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(9, result.getRotatedCount());
+		assertEquals(1, result.getSkippedCount());
+		assertEquals(4, result.getChunkCount());
+		assertEquals(getMaxId(), checkpoint.rotatedUpToId);
+		UserConnection userConnection = rooTemplate.getUserConnection("0",
+				"facebook", "a");
+		assertTrue(newTextEncryptor.isEncryptedWithKeyVersion(userConnection
+				.getAccessToken()));
+		assertEquals("accessToken",
+				newTextEncryptor.decrypt(userConnection.getAccessToken()));
+		assertNull(userConnection.getSecret());
+		assertEquals("refreshToken",
+				newTextEncryptor.decrypt(userConnection.getRefreshToken()));
+		assertEquals(Integer.valueOf(1), userConnection.getVersion());
+		assertEquals(Integer.valueOf(0),
+				rooTemplate.getUserConnection("rotated", "facebook", "a")
+						.getVersion());
+	}
+
+	@Test
+	public void resumesFromCheckpoint() {
+		for (int i = 0; i < 6; i++) {
+			insertConnection(String.valueOf(i), oldTextEncryptor);
+		}
+		List<Long> ids = new JdbcTemplate(dataSource).queryForList(
+				"select id from user_connection order by id", Long.class);
+		KeyRotationJob job = new KeyRotationJob(dataSource, oldTextEncryptor,
+				newTextEncryptor);
+		InMemoryCheckpoint checkpoint = new InMemoryCheckpoint();
+		checkpoint.rotatedUpToId = ids.get(3);
+		job.setCheckpoint(checkpoint);
+
+		assertEquals(2, job.run().getRotatedCount());
+		String notRotatedAccessToken = rooTemplate.getUserConnection("3",
+				"facebook", "a").getAccessToken();
+		assertFalse(newTextEncryptor
+				.isEncryptedWithKeyVersion(notRotatedAccessToken));
+		assertEquals("accessToken",
+				newTextEncryptor.decrypt(notRotatedAccessToken));
+		assertTrue(newTextEncryptor.isEncryptedWithKeyVersion(rooTemplate
+				.getUserConnection("4", "facebook", "a").getAccessToken()));
+		assertEquals(0, job.run().getRotatedCount());
+	}
+
+	@Test
+	public void doesNotRotateTwiceWhenOldTextDecryptsWithoutFailing() {
+		KeyVersionedTextEncryptor newNoOpTextEncryptor = new KeyVersionedTextEncryptor(
+				"2", Encryptors.noOpText());
+		newNoOpTextEncryptor.setPreviousTextEncryptor(Encryptors.noOpText());
+		for (int i = 0; i < 3; i++) {
+			insertConnection(String.valueOf(i), Encryptors.noOpText());
+		}
+		insertConnection("rotated", newNoOpTextEncryptor);
+		KeyRotationJob job = new KeyRotationJob(dataSource,
+				Encryptors.noOpText(), newNoOpTextEncryptor);
+
+		KeyRotationResult result = job.run();
+		assertEquals(3, result.getRotatedCount());
+		assertEquals(1, result.getSkippedCount());
+		result = job.run();
+		assertEquals(0, result.getRotatedCount());
+		assertEquals(4, result.getSkippedCount());
+		UserConnection userConnection = rooTemplate.getUserConnection("0",
+				"facebook", "a");
+		assertEquals("{2}accessToken", userConnection.getAccessToken());
+		assertEquals("accessToken",
+				newNoOpTextEncryptor.decrypt(userConnection.getAccessToken()));
+		assertEquals(Integer.valueOf(1), userConnection.getVersion());
+	}
+
+	private void insertConnection(String userId, TextEncryptor textEncryptor) {
+		rooTemplate.createUserConnection(userId, "facebook", "a", 1, null,
+				null, null, textEncryptor.encrypt("accessToken"), null,
+				textEncryptor.encrypt("refreshToken"), null);
+	}
+
+	private Long getMaxId() {
+		return new JdbcTemplate(dataSource).queryForObject(
+				"select max(id) from user_connection", Long.class);
+	}
+
+	private static class InMemoryCheckpoint implements KeyRotationCheckpoint {
+
+		private Long rotatedUpToId;
+
+		public Long getRotatedUpToId() {
+			return rotatedUpToId;
+		}
+
+		public void setRotatedUpToId(long id) {
+			rotatedUpToId = id;
+		}
+
+	}
+
+}
@@ -0,0 +1,230 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class ReplicaRoutingRooTemplateTest {
+
+	@Autowired
+	private RooUserConnectionTemplate jpaRooTemplate;
+
+	@Autowired
+	private DataSource jpaDataSource;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	private EmbeddedDatabase primary;
+
+	private EmbeddedDatabase replica;
+
+	private ReplicaRoutingDataSource dataSource;
+
+	private JdbcRooTemplate primaryTemplate;
+
+	private JdbcRooTemplate replicaTemplate;
+
+	@Before
+	public void setUp() {
+		primary = createDatabase("primary");
+		replica = createDatabase("replica");
+		dataSource = new ReplicaRoutingDataSource(primary,
+				Arrays.<DataSource> asList(replica));
+		primaryTemplate = new JdbcRooTemplate(primary);
+		replicaTemplate = new JdbcRooTemplate(replica);
+	}
+
+	@After
+	public void tearDown() {
+		primary.shutdown();
+		replica.shutdown();
+	}
+
+	@Test
+	public void readsGoToReplicaAndWritesToPrimary() {
+		ReplicaRoutingRooTemplate rooTemplate = createRooTemplate(0);
+		rooTemplate.addUserConnection("1", "facebook", "a", null, null, null,
+				"accessToken", null, null, null);
+		assertEquals(1, primaryTemplate.getAllUserConnections("1").size());
+		assertEquals(0, rooTemplate.getAllUserConnections("1").size());
+
+		insertConnection(replicaTemplate, "1", "a");
+		assertEquals(1, rooTemplate.getAllUserConnections("1").size());
+		assertEquals(1, rooTemplate.getUserConnections("facebook", "a")
+				.size());
+		assertEquals(2, rooTemplate.getRank("1", "facebook"));
+	}
+
+	@Test
+	public void readsFollowWritesWithinReadYourWritesWindow() {
+		insertConnection(primaryTemplate, "2", "b");
+		ReplicaRoutingRooTemplate rooTemplate = createRooTemplate(60000);
+		rooTemplate.addUserConnection("1", "facebook", "a", null, null, null,
+				"accessToken", null, null, null);
+
+		assertEquals(1, rooTemplate.getAllUserConnections("1").size());
+		assertEquals(1, rooTemplate.getUserConnections("facebook", "a")
+				.size());
+		assertEquals(Collections.singleton("1"), rooTemplate
+				.findUsersConnectedTo("facebook",
+						Collections.singleton("a")));
+		assertEquals(0, rooTemplate.getAllUserConnections("2").size());
+		assertEquals(0, rooTemplate.getUserConnections("facebook", "b")
+				.size());
+
+		ReplicaRoutingRooTemplate shortWindowTemplate = createRooTemplate(1);
+		shortWindowTemplate.removeUserConnection("1", "facebook", "a");
+		sleep(10);
+		assertEquals(0, shortWindowTemplate.getAllUserConnections("1").size());
+		insertConnection(replicaTemplate, "1", "a");
+		assertEquals(1, shortWindowTemplate.getAllUserConnections("1").size());
+	}
+
+	@Test
+	public void evictedWritesEndTheirWindowEarly() {
+		ReplicaRoutingRooTemplate rooTemplate = new ReplicaRoutingRooTemplate(
+				new JdbcRooTemplate(dataSource), dataSource, 60000, 2);
+		rooTemplate.addUserConnection("1", "facebook", "a", null, null, null,
+				"accessToken", null, null, null);
+		rooTemplate.addUserConnection("2", "facebook", "b", null, null, null,
+				"accessToken", null, null, null);
+
+		assertEquals(1, rooTemplate.getAllUserConnections("2").size());
+		assertEquals(0, rooTemplate.getAllUserConnections("1").size());
+	}
+
+	@Test
+	public void readsWithinTransactionGoToPrimary() {
+		insertConnection(primaryTemplate, "1", "a");
+		final ReplicaRoutingRooTemplate rooTemplate = createRooTemplate(0);
+		List<UserConnection> userConnections = new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource))
+				.execute(new TransactionCallback<List<UserConnection>>() {
+					public List<UserConnection> doInTransaction(
+							TransactionStatus status) {
+						return rooTemplate.getAllUserConnections("1");
+					}
+				});
+		assertEquals(1, userConnections.size());
+		assertTrue(rooTemplate.getAllUserConnections("1").isEmpty());
+	}
+
+	@Test
+	public void removeUserConnectionsStartsWindowOfEveryProviderUser() {
+		insertConnection(primaryTemplate, "1", "a");
+		insertConnection(replicaTemplate, "1", "a");
+		insertConnection(replicaTemplate, "2", "b");
+		ReplicaRoutingRooTemplate rooTemplate = createRooTemplate(60000);
+		assertEquals(1, rooTemplate.removeUserConnections("1", "facebook"));
+
+		assertEquals(0, rooTemplate.getUserConnections("facebook", "a")
+				.size());
+		assertEquals(1, rooTemplate.getUserConnections("facebook", "b")
+				.size());
+	}
+
+	@Test
+	public void removeUserConnectionsStartsWindowOfEveryProviderUserWithJpaTemplate() {
+		DatabasePopulatorUtils.execute(resourceDatabasePopulator,
+				jpaDataSource);
+		new JdbcTemplate(jpaDataSource).update("delete from user_connection");
+		jpaRooTemplate.createUserConnection("1", "facebook", "a", 1, null,
+				null, null, "accessToken", null, null, null);
+		jpaRooTemplate.createUserConnection("1", "facebook", "b", 2, null,
+				null, null, "accessToken", null, null, null);
+		CountingReplicaRoutingDataSource countingDataSource = new CountingReplicaRoutingDataSource(
+				jpaDataSource, replica);
+		ReplicaRoutingRooTemplate rooTemplate = new ReplicaRoutingRooTemplate(
+				jpaRooTemplate, countingDataSource, 60000);
+		try {
+			assertEquals(2, rooTemplate.removeUserConnections("1", "facebook"));
+
+			rooTemplate.getUserConnections("facebook", "a");
+			rooTemplate.findUsersConnectedTo("facebook",
+					Collections.singleton("b"));
+			assertEquals(0, countingDataSource.replicaReads);
+			rooTemplate.getUserConnections("facebook", "c");
+			assertEquals(1, countingDataSource.replicaReads);
+		} finally {
+			new JdbcTemplate(jpaDataSource)
+					.update("delete from user_connection");
+		}
+	}
+
+	private ReplicaRoutingRooTemplate createRooTemplate(
+			long readYourWritesWindowMillis) {
+		return new ReplicaRoutingRooTemplate(new JdbcRooTemplate(dataSource),
+				dataSource, readYourWritesWindowMillis);
+	}
+
+	private static EmbeddedDatabase createDatabase(String databaseName) {
+		EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+		factory.setDatabaseName(databaseName);
+		factory.setDatabaseConfigurer(new DataSourceTestConfig.MySqlCompatibleH2DatabaseConfigurer());
+		factory.setDatabasePopulator(new DataSourceTestConfig()
+				.resourceDatabasePopulator());
+		return factory.getDatabase();
+	}
+
+	private static void insertConnection(RooTemplate rooTemplate,
+			String userId, String providerUserId) {
+		rooTemplate.createUserConnection(userId, "facebook", providerUserId,
+				1, null, null, null, "accessToken", null, null, null);
+	}
+
+	/**
+	 * Counts the reads routed to replicas, for a delegate template which does
+	 * not obtain its connections from this data source.
+	 */
+	private static class CountingReplicaRoutingDataSource extends
+			ReplicaRoutingDataSource {
+
+		private int replicaReads;
+
+		public CountingReplicaRoutingDataSource(DataSource primary,
+				DataSource replica) {
+			super(primary, Arrays.asList(replica));
+		}
+
+		@Override
+		void beginReplicaRead() {
+			replicaReads++;
+			super.beginReplicaRead();
+		}
+
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,631 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.ApiAdapter;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.ConnectionValues;
+import org.springframework.social.connect.DuplicateConnectionException;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.connect.support.OAuth2ConnectionFactory;
+import org.springframework.social.oauth2.AccessGrant;
+import org.springframework.social.oauth2.OAuth2Operations;
+import org.springframework.social.oauth2.OAuth2ServiceProvider;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class RooConnectionRepositoryTest {
+
+	@Autowired
+	private RooTemplate rooTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	private ConnectionFactoryRegistry connectionFactoryRegistry;
+
+	private RooUsersConnectionRepository usersConnectionRepository;
+
+	@Before
+	public void setUp() {
+		DatabasePopulatorUtils.execute(resourceDatabasePopulator, dataSource);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		connectionFactoryRegistry = new ConnectionFactoryRegistry();
+		connectionFactoryRegistry
+				.addConnectionFactory(new TestApiConnectionFactory());
+		usersConnectionRepository = new RooUsersConnectionRepository(
+				rooTemplate, connectionFactoryRegistry, Encryptors.noOpText());
+	}
+
+	@After
+	public void tearDown() {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@Test
+	public void findConnectionsToUsersFillsEveryRequestedPosition() {
+		insertConnection("1", "a", 1);
+		insertConnection("1", "b", 2);
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.add("test", "a");
+		providerUsers.add("test", "b");
+		providerUsers.add("test", "a");
+		providerUsers.add("test", "missing");
+
+		List<Connection<?>> connections = connectionRepository
+				.findConnectionsToUsers(providerUsers).get("test");
+		assertEquals(4, connections.size());
+		assertEquals("a", connections.get(0).getKey().getProviderUserId());
+		assertEquals("b", connections.get(1).getKey().getProviderUserId());
+		assertEquals("a", connections.get(2).getKey().getProviderUserId());
+		assertNull(connections.get(3));
+	}
+
+	@Test
+	public void findAllConnectionDataDefersTokenDecryption() {
+		insertConnection("1", "a", 1);
+		insertConnection("1", "b", 2);
+		CountingTextEncryptor textEncryptor = new CountingTextEncryptor();
+		RooUsersConnectionRepository usersConnectionRepository = new RooUsersConnectionRepository(
+				rooTemplate, connectionFactoryRegistry, textEncryptor);
+
+		List<ConnectionData> connectionData = usersConnectionRepository
+				.findAllConnectionData("1").get("test");
+		assertEquals(2, connectionData.size());
+		assertEquals("a", connectionData.get(0).getDisplayName());
+		assertEquals("b", connectionData.get(1).getProviderUserId());
+		assertEquals(0, textEncryptor.decryptCount);
+
+		assertEquals("accessToken-a", connectionData.get(0).getAccessToken());
+		assertEquals("accessToken-a", connectionData.get(0).getAccessToken());
+		assertNull(connectionData.get(0).getSecret());
+		assertEquals(1, textEncryptor.decryptCount);
+	}
+
+	@Test
+	public void addConnectionAllocatesNextRank() {
+		insertConnection("1", "a", 1);
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		connectionRepository.addConnection(createConnection("b"));
+
+		List<UserConnection> userConnections = rooTemplate
+				.getAllUserConnections("1", "test");
+		assertEquals(2, userConnections.size());
+		assertEquals("b", userConnections.get(1).getProviderUserId());
+		assertEquals(2, userConnections.get(1).getRank());
+		assertEquals("accessToken-b", userConnections.get(1).getAccessToken());
+	}
+
+	@Test(expected = DuplicateConnectionException.class)
+	public void addConnectionRejectsDuplicateConnection() {
+		insertConnection("1", "a", 1);
+		usersConnectionRepository.createConnectionRepository("1")
+				.addConnection(createConnection("a"));
+	}
+
+	@Test
+	public void concurrentAddConnectionsAllocateDistinctRanks()
+			throws Exception {
+		final ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		final int threads = 4;
+		final int connectionsPerThread = 25;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int thread = 0; thread < threads; thread++) {
+			final int threadIndex = thread;
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					for (int i = 0; i < connectionsPerThread; i++) {
+						connectionRepository.addConnection(createConnection(threadIndex
+								+ "-" + i));
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+
+		List<UserConnection> userConnections = rooTemplate
+				.getAllUserConnections("1", "test");
+		assertEquals(threads * connectionsPerThread, userConnections.size());
+		for (int i = 0; i < userConnections.size(); i++) {
+			assertEquals(i + 1, userConnections.get(i).getRank());
+		}
+	}
+
+	@Test
+	public void addConnectionsAllocatesRanksPerUserAndProvider() {
+		insertConnection("1", "a", 1);
+		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
+		connections.add("1", createConnection("b"));
+		connections.add("2", createConnection("a"));
+		connections.add("1", createConnection("c"));
+		usersConnectionRepository.addConnections(connections);
+
+		List<UserConnection> userConnections = rooTemplate
+				.getAllUserConnections("1", "test");
+		assertEquals(3, userConnections.size());
+		assertEquals("b", userConnections.get(1).getProviderUserId());
+		assertEquals(2, userConnections.get(1).getRank());
+		assertEquals("c", userConnections.get(2).getProviderUserId());
+		assertEquals(3, userConnections.get(2).getRank());
+		assertEquals("accessToken-c", userConnections.get(2).getAccessToken());
+		assertEquals(1, rooTemplate.getUserConnection("2", "test", "a")
+				.getRank());
+	}
+
+	@Test
+	public void addConnectionsAddsNothingIfAnyConnectionExists() {
+		insertConnection("1", "b", 1);
+		try {
+			usersConnectionRepository.addConnections("1", Arrays.asList(
+					createConnection("a"), createConnection("b")));
+			fail();
+		} catch (DuplicateConnectionException e) {
+		}
+		assertEquals(1, rooTemplate.getAllUserConnections("1").size());
+	}
+
+	@Test
+	public void findAllConnectionsOfUsersGroupsByUserAndProvider() {
+		insertConnection("1", "a", 1);
+		insertConnection("1", "b", 2);
+		insertConnection("2", "c", 1);
+		JdbcRooTemplate jdbcRooTemplate = new JdbcRooTemplate(dataSource);
+		jdbcRooTemplate.setInClauseChunkSize(1);
+		for (RooTemplate rooTemplate : Arrays.asList(this.rooTemplate,
+				jdbcRooTemplate)) {
+			Map<String, MultiValueMap<String, Connection<?>>> connections = new RooUsersConnectionRepository(
+					rooTemplate, connectionFactoryRegistry,
+					Encryptors.noOpText()).findAllConnections(Arrays.asList(
+					"3", "1", "2"));
+			assertEquals(Arrays.asList("3", "1", "2"),
+					new ArrayList<String>(connections.keySet()));
+			assertEquals(0, connections.get("3").get("test").size());
+			List<Connection<?>> userConnections = connections.get("1").get(
+					"test");
+			assertEquals(2, userConnections.size());
+			assertEquals("a", userConnections.get(0).getKey()
+					.getProviderUserId());
+			assertEquals("b", userConnections.get(1).getKey()
+					.getProviderUserId());
+			assertEquals("accessToken-c", connections.get("2").get("test")
+					.get(0).createData().getAccessToken());
+		}
+	}
+
+	@Test
+	public void connectionCacheReusesConnectionsUntilTheyChange() {
+		usersConnectionRepository.setConnectionCacheSize(10);
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		connectionRepository.addConnection(createConnection("a"));
+
+		Connection<?> connection = connectionRepository.findConnections(
+				"test").get(0);
+		assertSame(connection.getApi(), usersConnectionRepository
+				.createConnectionRepository("1").findAllConnections()
+				.getFirst("test").getApi());
+		assertEquals(1, usersConnectionRepository.getConnectionCacheMissCount());
+		assertEquals(1, usersConnectionRepository.getConnectionCacheHitCount());
+
+		connectionRepository.updateConnection(connectionFactoryRegistry
+				.getConnectionFactory("test").createConnection(
+						new ConnectionData("test", "a", "a", null, null,
+								"refreshed", null, null, null)));
+		Connection<?> updatedConnection = connectionRepository
+				.findConnections("test").get(0);
+		assertNotSame(connection.getApi(), updatedConnection.getApi());
+		assertEquals("refreshed", updatedConnection.createData()
+				.getAccessToken());
+
+		connectionRepository.removeConnection(connection.getKey());
+		connectionRepository.addConnection(createConnection("a"));
+		assertEquals("accessToken-a", connectionRepository
+				.findConnections("test").get(0).createData().getAccessToken());
+	}
+
+	@Test
+	public void refreshingACachedConnectionLeavesOtherReadsUnchanged()
+			throws Exception {
+		usersConnectionRepository.setConnectionCacheSize(10);
+		final ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		connectionRepository.addConnection(connectionFactoryRegistry
+				.getConnectionFactory("test").createConnection(
+						new ConnectionData("test", "a", "a", null, null,
+								"accessToken-a", null, "refreshToken-a", null)));
+		final Object cachedApi = connectionRepository.findConnections("test")
+				.get(0).getApi();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Connection<?>>> refreshes = new ArrayList<Future<Connection<?>>>();
+		try {
+			for (int i = 0; i < 8; i++) {
+				refreshes.add(executor.submit(new Callable<Connection<?>>() {
+					public Connection<?> call() {
+						Connection<?> connection = connectionRepository
+								.findConnections("test").get(0);
+						assertSame(cachedApi, connection.getApi());
+						connection.refresh();
+						return connection;
+					}
+				}));
+			}
+			Set<String> accessTokens = new HashSet<String>();
+			for (Future<Connection<?>> refresh : refreshes) {
+				Connection<?> connection = refresh.get();
+				accessTokens.add(connection.createData().getAccessToken());
+				assertNotSame(cachedApi, connection.getApi());
+			}
+			assertEquals(8, accessTokens.size());
+		} finally {
+			executor.shutdown();
+		}
+
+		Connection<?> connection = connectionRepository.findConnections(
+				"test").get(0);
+		assertSame(cachedApi, connection.getApi());
+		assertEquals("accessToken-a", connection.createData()
+				.getAccessToken());
+		assertEquals(1, usersConnectionRepository.getConnectionCacheMissCount());
+	}
+
+	@Test
+	public void removeConnectionPromotesNextConnectionToPrimary() {
+		for (RooTemplate rooTemplate : Arrays.asList(this.rooTemplate,
+				new JdbcRooTemplate(dataSource))) {
+			ConnectionRepository connectionRepository = new RooUsersConnectionRepository(
+					rooTemplate, connectionFactoryRegistry,
+					Encryptors.noOpText()).createConnectionRepository("1");
+			connectionRepository.addConnection(createConnection("a"));
+			connectionRepository.addConnection(createConnection("b"));
+			connectionRepository.addConnection(createConnection("c"));
+
+			connectionRepository.removeConnection(new ConnectionKey("test",
+					"a"));
+			assertEquals("b", connectionRepository
+					.getPrimaryConnection(TestApi.class).getKey()
+					.getProviderUserId());
+			assertEquals(1, rooTemplate.getUserConnection("1", "test", "b")
+					.getRank());
+			assertEquals(2, rooTemplate.getUserConnection("1", "test", "c")
+					.getRank());
+
+			connectionRepository.addConnection(createConnection("a"));
+			assertEquals(3, rooTemplate.getUserConnection("1", "test", "a")
+					.getRank());
+			connectionRepository.removeConnections("test");
+			assertNull(connectionRepository.findPrimaryConnection(TestApi.class));
+		}
+	}
+
+	@Test
+	public void updateConnectionOnlyWritesChangedConnections() {
+		ConnectionRepository connectionRepository = usersConnectionRepository
+				.createConnectionRepository("1");
+		connectionRepository.addConnection(createConnection("a"));
+		for (int i = 0; i < 10; i++) {
+			connectionRepository.updateConnection(createConnection("a"));
+		}
+		assertEquals(0, getVersion("1", "a"));
+
+		connectionRepository.updateConnection(connectionFactoryRegistry
+				.getConnectionFactory("test").createConnection(
+						new ConnectionData("test", "a", "a", null, null,
+								"refreshed", null, null, null)));
+		assertEquals(1, getVersion("1", "a"));
+		assertEquals("refreshed",
+				rooTemplate.getUserConnection("1", "test", "a")
+						.getAccessToken());
+	}
+
+	@Test
+	public void updateConnectionVersionsUnversionedConnections() {
+		insertConnection("1", "a", 1);
+		new JdbcTemplate(dataSource)
+				.update("update user_connection set version = null");
+
+		usersConnectionRepository.createConnectionRepository("1")
+				.updateConnection(
+						connectionFactoryRegistry.getConnectionFactory("test")
+								.createConnection(
+										new ConnectionData("test", "a", "a",
+												null, null, "refreshed", null,
+												null, null)));
+		assertEquals(1, getVersion("1", "a"));
+	}
+
+	@Test
+	public void updateConnectionFailsIfConnectionChangesAfterItIsRead() {
+		insertConnection("1", "a", 1);
+		// Another writer refreshes the connection once it has been read for
+		// comparison
+		RooTemplate racingTemplate = (RooTemplate) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { RooTemplate.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						Object result;
+						try {
+							result = method.invoke(rooTemplate, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						if (method.getName().equals("getUserConnection")) {
+							UserConnection userConnection = (UserConnection) result;
+							assertEquals(1, rooTemplate.updateUserConnection(
+									"1", "test", "a", "a", null, null,
+									"concurrent", null, null, null,
+									userConnection.getVersion()));
+						}
+						return result;
+					}
+				});
+		ConnectionRepository connectionRepository = new RooUsersConnectionRepository(
+				racingTemplate, connectionFactoryRegistry,
+				Encryptors.noOpText()).createConnectionRepository("1");
+
+		try {
+			connectionRepository.updateConnection(connectionFactoryRegistry
+					.getConnectionFactory("test").createConnection(
+							new ConnectionData("test", "a", "a", null, null,
+									"refreshed", null, null, null)));
+			fail();
+		} catch (OptimisticLockingFailureException e) {
+		}
+		assertEquals(0, rooTemplate.updateUserConnection("1", "test", "a",
+				"a", null, null, "stale", null, null, null, 5));
+	}
+
+	@Test
+	public void metricsSinkRecordsOperationsWhileEnabled() {
+		insertConnection("1", "a", 1);
+		insertConnection("1", "b", 2);
+		HistogramMetricsSink metricsSink = new HistogramMetricsSink();
+		usersConnectionRepository.setMetricsSink(metricsSink);
+
+		usersConnectionRepository.createConnectionRepository("1")
+				.findAllConnections();
+		assertEquals(1,
+				metricsSink.getOperationMetrics(
+						"ConnectionRepository.findAllConnections").getCount());
+		assertEquals(2,
+				metricsSink.getOperationMetrics(
+						"ConnectionRepository.findAllConnections")
+						.getRowCount());
+		assertEquals(2,
+				metricsSink.getOperationMetrics(
+						"RooTemplate.getAllUserConnections").getRowCount());
+		assertEquals(2,
+				metricsSink.getOperationMetrics("TextEncryptor.decrypt")
+						.getCount());
+		assertEquals(2,
+				metricsSink.getOperationMetrics(
+						"ConnectionFactory.createConnection").getCount());
+
+		usersConnectionRepository.createConnectionRepository("1")
+				.findConnections("test");
+		assertEquals(1,
+				metricsSink.getOperationMetrics(
+						"ConnectionRepository.findConnections").getCount());
+		assertEquals(2,
+				metricsSink.getOperationMetrics(
+						"RooTemplate.getAllUserConnectionsByProvider")
+						.getRowCount());
+		assertEquals(2,
+				metricsSink.getOperationMetrics(
+						"RooTemplate.getAllUserConnections").getRowCount());
+
+		usersConnectionRepository
+				.findUserIdsWithConnection(createConnection("a"));
+		assertEquals(1,
+				metricsSink.getOperationMetrics(
+						"UsersConnectionRepository.findUserIdsWithConnection")
+						.getRowCount());
+
+		metricsSink.setEnabled(false);
+		usersConnectionRepository.createConnectionRepository("1")
+				.findAllConnections();
+		assertEquals(1,
+				metricsSink.getOperationMetrics(
+						"ConnectionRepository.findAllConnections").getCount());
+	}
+
+	@Test
+	public void asyncRepositoryRunsOperationsOnExecutor() throws Exception {
+		insertConnection("1", "a", 1);
+		insertConnection("2", "b", 1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			AsyncUsersConnectionRepository asyncUsersConnectionRepository = new AsyncUsersConnectionRepository(
+					usersConnectionRepository, executor);
+			AsyncConnectionRepository user1 = asyncUsersConnectionRepository
+					.createConnectionRepository("1");
+			AsyncConnectionRepository user2 = asyncUsersConnectionRepository
+					.createConnectionRepository("2");
+
+			user2.addConnection(createConnection("c")).get();
+			Future<List<Connection<?>>> user1Connections = user1
+					.findConnections("test");
+			Future<List<Connection<?>>> user2Connections = user2
+					.findConnections("test");
+			assertEquals(1, user1Connections.get().size());
+			assertEquals(2, user2Connections.get().size());
+			assertEquals(
+					"2",
+					asyncUsersConnectionRepository
+							.findUserIdsWithConnection(createConnection("c"))
+							.get().get(0));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = DuplicateConnectionException.class)
+	public void asyncRepositoryReportsFailuresThroughFuture() throws Throwable {
+		insertConnection("1", "a", 1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			new AsyncUsersConnectionRepository(usersConnectionRepository,
+					executor).createConnectionRepository("1")
+					.addConnection(createConnection("a")).get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private int getVersion(String userId, String providerUserId) {
+		return new JdbcTemplate(dataSource).queryForObject(
+				"select version from user_connection where user_id = ? and provider_id = 'test' and provider_user_id = ?",
+				Integer.class, userId, providerUserId);
+	}
+
+	private Connection<?> createConnection(String providerUserId) {
+		return connectionFactoryRegistry.getConnectionFactory("test")
+				.createConnection(
+						new ConnectionData("test", providerUserId,
+								providerUserId, null, null, "accessToken-"
+										+ providerUserId, null, null, null));
+	}
+
+	private void insertConnection(String userId, String providerUserId,
+			int rank) {
+		rooTemplate.createUserConnection(userId, "test", providerUserId, rank,
+				providerUserId, null, null, "accessToken-" + providerUserId,
+				null, null, null);
+	}
+
+	private static class CountingTextEncryptor implements TextEncryptor {
+
+		private int decryptCount;
+
+		public String encrypt(String text) {
+			return text;
+		}
+
+		public String decrypt(String encryptedText) {
+			decryptCount++;
+			return encryptedText;
+		}
+
+	}
+
+	public static class TestApi {
+	}
+
+	static class TestApiConnectionFactory extends
+			OAuth2ConnectionFactory<TestApi> {
+
+		public TestApiConnectionFactory() {
+			super("test", new TestApiServiceProvider(), new TestApiAdapter());
+		}
+
+	}
+
+	private static class TestApiServiceProvider implements
+			OAuth2ServiceProvider<TestApi> {
+
+		private final AtomicInteger refreshCount = new AtomicInteger();
+
+		/**
+		 * Returns operations supporting only refreshAccess, which grants a new
+		 * access token on every call.
+		 */
+		public OAuth2Operations getOAuthOperations() {
+			return (OAuth2Operations) Proxy.newProxyInstance(
+					OAuth2Operations.class.getClassLoader(),
+					new Class<?>[] { OAuth2Operations.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							if (!method.getName().equals("refreshAccess")) {
+								throw new UnsupportedOperationException(method
+										.getName());
+							}
+							return new AccessGrant("refreshed-"
+									+ refreshCount.incrementAndGet(), null,
+									(String) args[0], null);
+						}
+					});
+		}
+
+		public TestApi getApi(String accessToken) {
+			return new TestApi();
+		}
+
+	}
+
+	private static class TestApiAdapter implements ApiAdapter<TestApi> {
+
+		public boolean test(TestApi api) {
+			return true;
+		}
+
+		public void setConnectionValues(TestApi api, ConnectionValues values) {
+		}
+
+		public UserProfile fetchUserProfile(TestApi api) {
+			return null;
+		}
+
+		public void updateStatus(TestApi api, String message) {
+		}
+
+	}
+
+}
@@ -0,0 +1,425 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.social.connect.DuplicateConnectionException;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class RooUserConnectionTemplateTest {
+
+	@Autowired
+	private RooUserConnectionTemplate rooTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	@Autowired
+	private LocalContainerEntityManagerFactoryBean entityManagerFactory;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private Statistics statistics;
+
+	@Before
+	public void setUp() {
+		DatabasePopulatorUtils.execute(resourceDatabasePopulator, dataSource);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		statistics = ((HibernateEntityManagerFactory) entityManagerFactory
+				.getNativeEntityManagerFactory()).getSessionFactory()
+				.getStatistics();
+		statistics.setStatisticsEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		statistics.setStatisticsEnabled(false);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@Test
+	public void getAllUserConnectionsForProviderUsersUsesConstantQueryCount() {
+		insertConnections("1", "facebook", 200);
+		insertConnections("1", "twitter", 50);
+
+		MultiValueMap<String, String> fewProviderUsers = new LinkedMultiValueMap<String, String>();
+		fewProviderUsers.add("facebook", "facebook-0");
+		fewProviderUsers.add("twitter", "twitter-0");
+		fewProviderUsers.add("twitter", "unknown");
+
+		statistics.clear();
+		assertEquals(2,
+				rooTemplate.getAllUserConnections("1", fewProviderUsers)
+						.size());
+		long fewProviderUsersStatements = statistics.getPrepareStatementCount();
+
+		MultiValueMap<String, String> manyProviderUsers = new LinkedMultiValueMap<String, String>();
+		for (int i = 0; i < 200; i++) {
+			manyProviderUsers.add("facebook", "facebook-" + i);
+			manyProviderUsers.add("facebook", "unknown-" + i);
+		}
+		for (int i = 0; i < 50; i++) {
+			manyProviderUsers.add("twitter", "twitter-" + i);
+		}
+
+		statistics.clear();
+		List<UserConnection> userConnections = rooTemplate
+				.getAllUserConnections("1", manyProviderUsers);
+		assertEquals(250, userConnections.size());
+		assertEquals(fewProviderUsersStatements,
+				statistics.getPrepareStatementCount());
+	}
+
+	@Test
+	public void getAllUserConnectionsForProviderUsersKeepsRequestOrderAndIgnoresOtherUsers() {
+		insertConnections("1", "facebook", 3);
+		insertConnections("2", "facebook", 3);
+
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.add("facebook", "facebook-2");
+		providerUsers.add("facebook", "facebook-0");
+		providerUsers.add("facebook", "missing");
+		providerUsers.add("facebook", "facebook-2");
+
+		List<UserConnection> userConnections = rooTemplate
+				.getAllUserConnections("2", providerUsers);
+		assertEquals(3, userConnections.size());
+		for (UserConnection userConnection : userConnections) {
+			assertEquals("2", userConnection.getUserId());
+		}
+		assertEquals("facebook-2", userConnections.get(0).getProviderUserId());
+		assertEquals("facebook-0", userConnections.get(1).getProviderUserId());
+		assertEquals("facebook-2", userConnections.get(2).getProviderUserId());
+	}
+
+	@Test
+	public void findUsersConnectedToSplitsLargeProviderUserIdSets() {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 1000; i++) {
+			rows.add(new Object[] { "user-" + (i % 100), "twitter",
+					"follower-" + (i * 100), i / 100 + 1 });
+		}
+		new JdbcTemplate(dataSource)
+				.batchUpdate(
+						"insert into user_connection (user_id, provider_id, provider_user_id, rank, version) values (?, ?, ?, ?, 0)",
+						rows);
+		Set<String> providerUserIds = new HashSet<String>();
+		for (int i = 0; i < 100000; i++) {
+			providerUserIds.add("follower-" + i);
+		}
+
+		assertEquals(100,
+				rooTemplate.findUsersConnectedTo("twitter", providerUserIds)
+						.size());
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		rooTemplate.setQueryExecutor(executor);
+		try {
+			Set<String> userIds = rooTemplate.findUsersConnectedTo("twitter",
+					providerUserIds);
+			assertEquals(100, userIds.size());
+			assertTrue(userIds.contains("user-99"));
+			assertEquals(0,
+					rooTemplate.findUsersConnectedTo("facebook",
+							providerUserIds).size());
+		} finally {
+			rooTemplate.setQueryExecutor(null);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void removeUserConnectionsReportsRowsDeleted() {
+		insertConnections("1", "facebook", 3);
+		insertConnections("1", "twitter", 2);
+
+		statistics.clear();
+		assertEquals(1,
+				rooTemplate.removeUserConnection("1", "facebook", "facebook-1"));
+		assertEquals(0,
+				rooTemplate.removeUserConnection("1", "facebook", "facebook-1"));
+		assertEquals(2, rooTemplate.removeUserConnections("1", "facebook"));
+		// Rank lookup, delete and the two updates of rank compaction, rank
+		// lookup, bulk delete
+		assertEquals(6, statistics.getPrepareStatementCount());
+
+		assertEquals(0, rooTemplate.getAllUserConnections("1", "facebook")
+				.size());
+		assertEquals(2, rooTemplate.getAllUserConnections("1", "twitter")
+				.size());
+	}
+
+	@Test
+	public void removeUserConnectionMovesUpTheRanksAfterIt() {
+		assertRanksMovedUp(rooTemplate);
+		assertRanksMovedUp(new JdbcRooTemplate(dataSource));
+	}
+
+	@Test
+	public void listReadsReturnEntitiesExcludedFromDirtyChecking() {
+		insertConnections("1", "facebook", 3);
+
+		new TransactionTemplate(transactionManager)
+				.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(
+							TransactionStatus status) {
+						for (UserConnection userConnection : rooTemplate
+								.getAllUserConnections("1", "facebook")) {
+							userConnection.setDisplayName("changed");
+						}
+						rooTemplate.getAllUserConnections("1").get(0)
+								.setDisplayName("changed");
+						rooTemplate.getUserConnections("facebook",
+								"facebook-0").get(0).setDisplayName("changed");
+					}
+				});
+
+		assertEquals(0, new JdbcTemplate(dataSource).queryForObject(
+				"select count(*) from user_connection where display_name = 'changed'",
+				Integer.class).intValue());
+	}
+
+	@Test
+	public void entityManagerIsResolvedOnce() {
+		assertSame(UserConnection.entityManager(),
+				UserConnection.entityManager());
+	}
+
+	@Test
+	public void addUserConnectionRetriesOnlyUniqueIndexViolations() {
+		CollidingRooUserConnectionTemplate collidingTemplate = new CollidingRooUserConnectionTemplate();
+		collidingTemplate.failure = new DuplicateKeyException(
+				"user_connection_rank");
+		collidingTemplate.addUserConnection("1", "facebook", "a", null, null,
+				null, "accessToken", null, null, null);
+		assertEquals(2, collidingTemplate.attempts);
+		assertEquals(1, rooTemplate.getAllUserConnections("1", "facebook")
+				.get(0).getRank());
+
+		collidingTemplate.attempts = 0;
+		collidingTemplate.failure = new QueryTimeoutException("lock timeout");
+		try {
+			collidingTemplate.addUserConnection("1", "facebook", "b", null,
+					null, null, "accessToken", null, null, null);
+			fail();
+		} catch (QueryTimeoutException e) {
+			assertEquals(1, collidingTemplate.attempts);
+		}
+	}
+
+	@Test
+	public void jdbcAddUserConnectionRetriesOnlyUniqueIndexViolations() {
+		CollidingJdbcRooTemplate collidingTemplate = new CollidingJdbcRooTemplate(
+				dataSource);
+		collidingTemplate.failure = new DuplicateKeyException(
+				"user_connection_rank");
+		collidingTemplate.addUserConnection("1", "facebook", "a", null, null,
+				null, "accessToken", null, null, null);
+		assertEquals(2, collidingTemplate.attempts);
+
+		collidingTemplate.attempts = 0;
+		collidingTemplate.failure = new QueryTimeoutException("lock timeout");
+		try {
+			collidingTemplate.addUserConnection("1", "facebook", "b", null,
+					null, null, "accessToken", null, null, null);
+			fail();
+		} catch (QueryTimeoutException e) {
+			assertEquals(1, collidingTemplate.attempts);
+		}
+	}
+
+	@Test
+	public void createUserConnectionsJoinsTheCurrentTransaction() {
+		// Without a JpaDialect exposing the JDBC connection, each connection
+		// is inserted with a native query
+		createUserConnectionsAndRollBack(transactionManager, 2);
+
+		JpaTransactionManager exposingTransactionManager = new JpaTransactionManager(
+				entityManagerFactory.getObject());
+		exposingTransactionManager.setJpaDialect(new HibernateJpaDialect());
+		exposingTransactionManager.afterPropertiesSet();
+		createUserConnectionsAndRollBack(exposingTransactionManager, 0);
+	}
+
+	@Test
+	public void jdbcAddUserConnectionsIsAtomicAndReportsConcurrentDuplicates() {
+		rooTemplate.createUserConnection("1", "facebook", "b", 1, null, null,
+				null, "accessToken", null, null, null);
+		JdbcRooTemplate jdbcRooTemplate = new JdbcRooTemplate(dataSource) {
+
+			// Misses the existing connection, as if it were inserted
+			// concurrently after being looked up
+			@Override
+			public List<UserConnection> getAllUserConnections(String userId,
+					MultiValueMap<String, String> providerUsers) {
+				return new ArrayList<UserConnection>();
+			}
+
+		};
+		try {
+			jdbcRooTemplate.addUserConnections(Arrays.asList(
+					newUserConnection("1", "facebook", "a", 1),
+					newUserConnection("1", "facebook", "b", 2)));
+			fail();
+		} catch (DuplicateConnectionException e) {
+			assertEquals("b", e.getConnectionKey().getProviderUserId());
+		}
+		assertEquals(1, rooTemplate.getAllUserConnections("1", "facebook")
+				.size());
+	}
+
+	private void createUserConnectionsAndRollBack(
+			PlatformTransactionManager transactionManager,
+			final int expectedHibernateStatements) {
+		new TransactionTemplate(transactionManager)
+				.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(
+							TransactionStatus status) {
+						statistics.clear();
+						rooTemplate.createUserConnections(Arrays.asList(
+								newUserConnection("1", "facebook", "a", 1),
+								newUserConnection("1", "facebook", "b", 2)));
+						assertEquals(expectedHibernateStatements,
+								statistics.getPrepareStatementCount());
+						assertEquals(2,
+								rooTemplate.getAllUserConnections("1",
+										"facebook").size());
+						status.setRollbackOnly();
+					}
+				});
+		assertEquals(0, rooTemplate.getAllUserConnections("1", "facebook")
+				.size());
+	}
+
+	private static UserConnection newUserConnection(String userId,
+			String providerId, String providerUserId, int rank) {
+		UserConnection userConnection = new UserConnection();
+		userConnection.setUserId(userId);
+		userConnection.setProviderId(providerId);
+		userConnection.setProviderUserId(providerUserId);
+		userConnection.setRank(rank);
+		userConnection.setAccessToken("accessToken");
+		return userConnection;
+	}
+
+	private void assertRanksMovedUp(RooTemplate rooTemplate) {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		insertConnections("1", "facebook", 3);
+
+		assertEquals(1,
+				rooTemplate.removeUserConnection("1", "facebook", "facebook-0"));
+
+		List<UserConnection> userConnections = rooTemplate
+				.getAllUserConnections("1", "facebook");
+		assertEquals(2, userConnections.size());
+		assertEquals("facebook-1", userConnections.get(0).getProviderUserId());
+		assertEquals(1, userConnections.get(0).getRank());
+		assertEquals(Integer.valueOf(1), userConnections.get(0).getVersion());
+		assertEquals("facebook-2", userConnections.get(1).getProviderUserId());
+		assertEquals(2, userConnections.get(1).getRank());
+		assertEquals(Integer.valueOf(1), userConnections.get(1).getVersion());
+	}
+
+	private void insertConnections(String userId, String providerId,
+			int count) {
+		for (int i = 0; i < count; i++) {
+			rooTemplate.createUserConnection(userId, providerId, providerId
+					+ "-" + i, i + 1, null, null, null, "accessToken", null,
+					null, null);
+		}
+	}
+
+	/**
+	 * Fails the first insert with the given exception, as a concurrent insert
+	 * taking the same rank would.
+	 */
+	private static class CollidingRooUserConnectionTemplate extends
+			RooUserConnectionTemplate {
+
+		private RuntimeException failure;
+
+		private int attempts;
+
+		@Override
+		protected int insertUserConnectionWithNextRank(String userId,
+				String providerId, String providerUserId, String displayName,
+				String profileUrl, String imageUrl, String accessToken,
+				String secret, String refreshToken, Long expireTime) {
+			if (attempts++ == 0) {
+				throw failure;
+			}
+			return super.insertUserConnectionWithNextRank(userId, providerId,
+					providerUserId, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime);
+		}
+
+	}
+
+	private static class CollidingJdbcRooTemplate extends JdbcRooTemplate {
+
+		private RuntimeException failure;
+
+		private int attempts;
+
+		public CollidingJdbcRooTemplate(DataSource dataSource) {
+			super(dataSource);
+		}
+
+		@Override
+		protected int insertUserConnectionWithNextRank(String userId,
+				String providerId, String providerUserId, String displayName,
+				String profileUrl, String imageUrl, String accessToken,
+				String secret, String refreshToken, Long expireTime) {
+			if (attempts++ == 0) {
+				throw failure;
+			}
+			return super.insertUserConnectionWithNextRank(userId, providerId,
+					providerUserId, displayName, profileUrl, imageUrl,
+					accessToken, secret, refreshToken, expireTime);
+		}
+
+	}
+
+}
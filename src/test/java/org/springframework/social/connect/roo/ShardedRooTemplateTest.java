@@ -0,0 +1,266 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactory;
+
+public class ShardedRooTemplateTest {
+
+	private static final int USERS = 30;
+
+	private List<EmbeddedDatabase> databases = new ArrayList<EmbeddedDatabase>();
+
+	private List<RooTemplate> shards = new ArrayList<RooTemplate>();
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < 3; i++) {
+			EmbeddedDatabaseFactory factory = new EmbeddedDatabaseFactory();
+			factory.setDatabaseName("shard" + i);
+			factory.setDatabaseConfigurer(new DataSourceTestConfig.MySqlCompatibleH2DatabaseConfigurer());
+			factory.setDatabasePopulator(new DataSourceTestConfig()
+					.resourceDatabasePopulator());
+			EmbeddedDatabase database = factory.getDatabase();
+			databases.add(database);
+			shards.add(new JdbcRooTemplate(database));
+		}
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		for (EmbeddedDatabase database : databases) {
+			database.shutdown();
+		}
+	}
+
+	@Test
+	public void userOperationsAreRoutedToTheUsersShard() {
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(shards);
+		addConnections(rooTemplate);
+
+		int connections = 0;
+		for (RooTemplate shard : shards) {
+			List<UserConnection> shardConnections = shard
+					.getUserConnectionsAfter(null, USERS * 2);
+			assertTrue(shardConnections.size() < USERS * 2);
+			for (UserConnection userConnection : shardConnections) {
+				assertSame(shard,
+						rooTemplate.getShard(userConnection.getUserId()));
+			}
+			connections += shardConnections.size();
+		}
+		assertEquals(USERS * 2, connections);
+
+		assertEquals(2, rooTemplate.getAllUserConnections("user7").size());
+		assertEquals(2, rooTemplate.getRank("user7", "twitter"));
+		assertEquals(1, rooTemplate.removeUserConnections("user7", "twitter"));
+		assertEquals(1, rooTemplate.getAllUserConnections("user7").size());
+		assertEquals(USERS * 2 - 1,
+				rooTemplate.getAllUserConnections(userIds()).size());
+	}
+
+	@Test
+	public void providerUserLookupsAreGatheredFromEveryShard() {
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(shards);
+		addConnections(rooTemplate);
+
+		assertEquals(new HashSet<String>(userIds()),
+				rooTemplate.findUsersConnectedTo("facebook",
+						Collections.singleton("shared")));
+		List<UserConnection> userConnections = rooTemplate
+				.getUserConnections("facebook", "shared");
+		assertEquals(USERS, userConnections.size());
+
+		List<UserConnection> expiring = rooTemplate
+				.getUserConnectionsExpiringBefore("twitter", 10, null, 5);
+		assertEquals(5, expiring.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Long.valueOf(i), expiring.get(i).getExpireTime());
+		}
+		assertEquals(Long.valueOf(5), rooTemplate
+				.getUserConnectionsExpiringBefore("twitter", 10,
+						expiring.get(4), 5).get(0).getExpireTime());
+	}
+
+	@Test
+	public void pagesThroughConnectionsOfEveryShardSharingIds() {
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(shards);
+		addConnections(rooTemplate);
+
+		Set<String> keys = new HashSet<String>();
+		long lastId = Long.MIN_VALUE;
+		List<UserConnection> page = rooTemplate.getUserConnectionsAfter(null,
+				4);
+		while (!page.isEmpty()) {
+			for (UserConnection userConnection : page) {
+				assertTrue(userConnection.getId() >= lastId);
+				lastId = userConnection.getId();
+				keys.add(userConnection.getUserId() + "/"
+						+ userConnection.getProviderUserId());
+			}
+			if (page.size() < 4) {
+				break;
+			}
+			page = rooTemplate.getUserConnectionsAfter(lastId, 4);
+		}
+		assertEquals(USERS * 2, keys.size());
+	}
+
+	@Test
+	public void pagesThroughConnectionsExpiringTogetherOnEveryShard() {
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(shards);
+		for (int i = 0; i < USERS; i++) {
+			rooTemplate.addUserConnection("user" + i, "twitter", "twitter" + i,
+					null, null, null, "accessToken", null, null,
+					Long.valueOf(7));
+		}
+
+		Set<String> userIds = new HashSet<String>();
+		List<UserConnection> page = rooTemplate
+				.getUserConnectionsExpiringBefore("twitter", 10, null, 1);
+		while (!page.isEmpty()) {
+			assertEquals(1, page.size());
+			assertTrue(userIds.add(page.get(0).getUserId()));
+			page = rooTemplate.getUserConnectionsExpiringBefore("twitter", 10,
+					page.get(0), 1);
+		}
+		assertEquals(USERS, userIds.size());
+	}
+
+	@Test(expected = QueryTimeoutException.class)
+	public void slowShardTimesOut() {
+		List<RooTemplate> slowShards = new ArrayList<RooTemplate>(shards);
+		slowShards.set(1, slowRooTemplate(shards.get(1)));
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(slowShards);
+		rooTemplate.setShardTimeoutMillis(100);
+		rooTemplate.findUsersConnectedTo("facebook",
+				Collections.singleton("shared"));
+	}
+
+	@Test
+	public void rebalancerMovesConnectionsToTheirNewShard() {
+		List<RooTemplate> previousShards = shards.subList(0, 2);
+		addConnections(createShardedRooTemplate(previousShards));
+
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(shards);
+		ShardRebalancer rebalancer = new ShardRebalancer(previousShards,
+				rooTemplate);
+		rebalancer.setBatchSize(7);
+		assertTrue(rebalancer.rebalance() > 0);
+		assertEquals(0, rebalancer.rebalance());
+
+		for (String userId : userIds()) {
+			List<UserConnection> userConnections = rooTemplate
+					.getAllUserConnections(userId);
+			assertEquals(2, userConnections.size());
+			assertEquals(1, userConnections.get(0).getRank());
+		}
+		assertNotNull(rooTemplate.getUserConnection("user1", "facebook",
+				"shared"));
+		int connections = 0;
+		for (RooTemplate shard : shards) {
+			connections += shard.getUserConnectionsAfter(null, USERS * 2)
+					.size();
+		}
+		assertEquals(USERS * 2, connections);
+	}
+
+	@Test
+	public void rebalancerKeepsRanksOfConnectionsSpanningBatches() {
+		List<RooTemplate> previousShards = shards.subList(0, 2);
+		ShardedRooTemplate previousRooTemplate = createShardedRooTemplate(previousShards);
+		// Interleaved, so that each user's connections to a provider are read
+		// in different batches
+		for (int rank = 1; rank <= 3; rank++) {
+			for (String userId : userIds()) {
+				previousRooTemplate.addUserConnection(userId, "twitter",
+						userId + "-" + rank, null, null, null, "accessToken",
+						null, null, null);
+			}
+		}
+
+		ShardedRooTemplate rooTemplate = createShardedRooTemplate(shards);
+		ShardRebalancer rebalancer = new ShardRebalancer(previousShards,
+				rooTemplate);
+		rebalancer.setBatchSize(2);
+		assertTrue(rebalancer.rebalance() > 0);
+
+		for (String userId : userIds()) {
+			List<UserConnection> userConnections = rooTemplate
+					.getAllUserConnections(userId, "twitter");
+			assertEquals(3, userConnections.size());
+			for (int rank = 1; rank <= 3; rank++) {
+				UserConnection userConnection = userConnections.get(rank - 1);
+				assertEquals(rank, userConnection.getRank());
+				assertEquals(userId + "-" + rank,
+						userConnection.getProviderUserId());
+			}
+		}
+	}
+
+	private ShardedRooTemplate createShardedRooTemplate(
+			List<RooTemplate> shards) {
+		ShardedRooTemplate rooTemplate = new ShardedRooTemplate(shards);
+		rooTemplate.setExecutor(executor);
+		return rooTemplate;
+	}
+
+	private static void addConnections(RooTemplate rooTemplate) {
+		for (int i = 0; i < USERS; i++) {
+			rooTemplate.addUserConnection("user" + i, "facebook", "shared",
+					null, null, null, "accessToken", null, null, null);
+			rooTemplate.addUserConnection("user" + i, "twitter", "twitter"
+					+ i, null, null, null, "accessToken", null, null,
+					Long.valueOf(i));
+		}
+	}
+
+	private static List<String> userIds() {
+		List<String> userIds = new ArrayList<String>();
+		for (int i = 0; i < USERS; i++) {
+			userIds.add("user" + i);
+		}
+		return userIds;
+	}
+
+	private static RooTemplate slowRooTemplate(final RooTemplate rooTemplate) {
+		return (RooTemplate) Proxy.newProxyInstance(
+				RooTemplate.class.getClassLoader(),
+				new Class<?>[] { RooTemplate.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						Thread.sleep(1000);
+						try {
+							return method.invoke(rooTemplate, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+}
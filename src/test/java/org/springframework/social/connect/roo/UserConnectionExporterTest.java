@@ -0,0 +1,161 @@
+package org.springframework.social.connect.roo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/META-INF/spring/applicationContext.xml" })
+public class UserConnectionExporterTest {
+
+	@Autowired
+	private RooTemplate rooTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ResourceDatabasePopulator resourceDatabasePopulator;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private UserConnectionExporter exporter;
+
+	@Before
+	public void setUp() {
+		DatabasePopulatorUtils.execute(resourceDatabasePopulator, dataSource);
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		exporter = new UserConnectionExporter(rooTemplate);
+		exporter.setBatchSize(2);
+	}
+
+	@After
+	public void tearDown() {
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+	}
+
+	@Test
+	public void exportStreamsDetachedBatchesInIdOrder() {
+		for (int i = 1; i <= 5; i++) {
+			rooTemplate.createUserConnection("user" + i, "facebook", "a", 1,
+					null, null, null, "accessToken", null, null, null);
+		}
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		final List<String> userIds = new ArrayList<String>();
+		new TransactionTemplate(transactionManager)
+				.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(
+							TransactionStatus status) {
+						assertEquals(5, exporter
+								.export(new UserConnectionBatchHandler() {
+									public void handleBatch(
+											List<UserConnection> userConnections) {
+										batchSizes.add(userConnections.size());
+										for (UserConnection userConnection : userConnections) {
+											assertFalse(UserConnection
+													.entityManager().contains(
+															userConnection));
+											userIds.add(userConnection
+													.getUserId());
+										}
+									}
+								}));
+					}
+				});
+		assertEquals("[2, 2, 1]", batchSizes.toString());
+		assertEquals("[user1, user2, user3, user4, user5]", userIds.toString());
+	}
+
+	@Test
+	public void exportedConnectionsCanBeImported() throws Exception {
+		rooTemplate.createUserConnection("1", "facebook", "a", 1,
+				"tab\there", "http://example.com/a", null, "line\nbreak",
+				"back\\slash", null, 1234L);
+		rooTemplate.createUserConnection("1", "facebook", "b", 2, null, null,
+				null, "accessToken", null, "\\N", null);
+		rooTemplate.createUserConnection("2", "twitter", "c", 1, "c", null,
+				null, "accessToken", "secret", null, null);
+
+		StringWriter export = new StringWriter();
+		assertEquals(3, exporter.exportTo(export));
+		assertEquals(3, export.toString().split("\n").length);
+
+		new JdbcTemplate(dataSource).update("delete from user_connection");
+		assertEquals(3, exporter.importFrom(new StringReader(export.toString())));
+
+		UserConnection a = rooTemplate.getUserConnection("1", "facebook", "a");
+		assertEquals(1, a.getRank());
+		assertEquals("tab\there", a.getDisplayName());
+		assertEquals("http://example.com/a", a.getProfileUrl());
+		assertNull(a.getImageUrl());
+		assertEquals("line\nbreak", a.getAccessToken());
+		assertEquals("back\\slash", a.getSecret());
+		assertEquals(Long.valueOf(1234L), a.getExpireTime());
+		UserConnection b = rooTemplate.getUserConnection("1", "facebook", "b");
+		assertEquals(2, b.getRank());
+		assertEquals("\\N", b.getRefreshToken());
+		assertNull(b.getSecret());
+		assertNull(b.getExpireTime());
+		assertEquals("secret", rooTemplate.getUserConnection("2", "twitter",
+				"c").getSecret());
+	}
+
+	@Test
+	public void exportExpiringBeforePagesByExpireTime() {
+		rooTemplate.createUserConnection("1", "facebook", "a", 1, null, null,
+				null, "accessToken", null, null, 300L);
+		rooTemplate.createUserConnection("2", "facebook", "a", 1, null, null,
+				null, "accessToken", null, null, 100L);
+		rooTemplate.createUserConnection("3", "facebook", "a", 1, null, null,
+				null, "accessToken", null, null, 100L);
+		rooTemplate.createUserConnection("4", "facebook", "a", 1, null, null,
+				null, "accessToken", null, null, 200L);
+		rooTemplate.createUserConnection("5", "facebook", "a", 1, null, null,
+				null, "accessToken", null, null, null);
+		rooTemplate.createUserConnection("6", "twitter", "a", 1, null, null,
+				null, "accessToken", null, null, 100L);
+		rooTemplate.createUserConnection("7", "facebook", "a", 1, null, null,
+				null, "accessToken", null, null, 400L);
+
+		final List<String> userIds = new ArrayList<String>();
+		assertEquals(4, exporter.exportExpiringBefore("facebook", 400L,
+				new UserConnectionBatchHandler() {
+					public void handleBatch(List<UserConnection> userConnections) {
+						for (UserConnection userConnection : userConnections) {
+							userIds.add(userConnection.getUserId());
+						}
+					}
+				}));
+		assertEquals("[2, 3, 4, 1]", userIds.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void importRejectsMalformedLines() throws Exception {
+		exporter.importFrom(new StringReader("1\tfacebook\ta\n"));
+	}
+
+}